@@ -0,0 +1,74 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.PipelineCommit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge of deployed commits into an environment stage for pipelines with large commit stages.
+ * The inputs are built by {@link DeployedCommitMergerInputs}, {@link DeployedCommitMergerTest} checks the
+ * merge against the former implementation on them.
+ * <p>
+ * Needs the jmh profile, run the main method from the test classpath, e.g. from the IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeployedCommitMergerBenchmark {
+    @Param({"10000", "50000"})
+    private int commits;
+
+    private List<PipelineCommit> commitStage;
+    private List<PipelineCommit> sortedCommitStage;
+    private List<PipelineCommit> existing;
+    private List<PipelineCommit> deployed;
+
+    @Setup
+    public void setUp() {
+        DeployedCommitMergerInputs inputs = new DeployedCommitMergerInputs(commits, 1, 42);
+        commitStage = inputs.commitStage;
+        existing = inputs.existing;
+        deployed = inputs.deployed;
+        sortedCommitStage = new DeployedCommitMerger().putCommitStage(null, commitStage);
+    }
+
+    /**
+     * Later merges into a pipeline within the same cycle, the commit stage is already sorted.
+     */
+    @Benchmark
+    public Set<PipelineCommit> merge() {
+        return DeployedCommitMerger.merge(sortedCommitStage, existing, deployed);
+    }
+
+    /**
+     * First merge into a pipeline in a cycle, including sorting the commit stage.
+     */
+    @Benchmark
+    public Set<PipelineCommit> sortAndMerge() {
+        List<PipelineCommit> sorted = new DeployedCommitMerger().putCommitStage(null, commitStage);
+        return DeployedCommitMerger.merge(sorted, existing, deployed);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DeployedCommitMergerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
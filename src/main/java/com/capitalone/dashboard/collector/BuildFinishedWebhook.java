@@ -0,0 +1,200 @@
+package com.capitalone.dashboard.collector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts Teamcity build finished notifications on {@code teamcity.webhookPort}, so deployments show
+ * up without waiting for the next collection cycle. Notifications are queued and collected one at a
+ * time by {@link TeamcityCollectorTask#collectBuild}.
+ * <p>
+ * The body is a JSON object with {@code buildId} and {@code buildTypeId}, either at the top level or in
+ * a {@code build} object. {@code instanceUrl} names the Teamcity server and may be left out when only
+ * one server is configured. Only configured servers are ever called, and only builds Teamcity reports
+ * as finished are collected.
+ * <p>
+ * Notifications have to carry the {@code teamcity.webhookToken} as a bearer token, the endpoint does
+ * not start without one.
+ */
+@Component
+public class BuildFinishedWebhook {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BuildFinishedWebhook.class);
+
+    static final String PATH = "/teamcity/build-finished";
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+
+    private final TeamcitySettings settings;
+    private final TeamcityCollectorTask collectorTask;
+    private HttpServer server;
+    private ExecutorService worker;
+
+    @Autowired
+    public BuildFinishedWebhook(TeamcitySettings settings, TeamcityCollectorTask collectorTask) {
+        this.settings = settings;
+        this.collectorTask = collectorTask;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (settings.getWebhookPort() <= 0) {
+            return;
+        }
+        start(settings.getWebhookPort());
+    }
+
+    /**
+     * @param port the port to listen on, 0 for any free port
+     * @throws IllegalStateException if no token is configured, the endpoint is never open to anyone
+     */
+    void start(int port) throws IOException {
+        if (StringUtils.isEmpty(settings.getWebhookToken())) {
+            throw new IllegalStateException("teamcity.webhookToken has to be set when teamcity.webhookPort is");
+        }
+        worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, settings.getWebhookQueueSize())), r -> {
+            Thread thread = new Thread(r, "teamcity-webhook");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+        LOGGER.info("Listening for Teamcity build notifications on port {}{}", getPort(), PATH);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (worker != null) {
+            worker.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Only POST is supported");
+                return;
+            }
+            if (!authorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                respond(exchange, 401, "Missing or wrong token");
+                return;
+            }
+            JSONObject json = readBody(exchange.getRequestBody());
+            if (json == null) {
+                respond(exchange, 400, "Expected a JSON object of at most " + MAX_BODY_BYTES + " bytes");
+                return;
+            }
+            if (json.get("build") instanceof JSONObject) {
+                json = (JSONObject) json.get("build");
+            }
+            String buildId = str(json, "buildId");
+            String buildTypeId = str(json, "buildTypeId");
+            String instanceUrl = findServer(str(json, "instanceUrl"));
+            if (!StringUtils.isNumeric(buildId) || StringUtils.isEmpty(buildTypeId) || instanceUrl == null) {
+                respond(exchange, 400, "Expected a numeric buildId, a buildTypeId and the instanceUrl of a configured server");
+                return;
+            }
+            worker.execute(() -> collect(instanceUrl, buildTypeId, buildId));
+            respond(exchange, 202, "Queued");
+        } catch (RejectedExecutionException e) {
+            respond(exchange, 503, "Too many queued builds");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void collect(String instanceUrl, String buildTypeId, String buildId) {
+        long start = System.currentTimeMillis();
+        try {
+            boolean collected = collectorTask.collectBuild(instanceUrl, buildTypeId, buildId);
+            LOGGER.info("Build {} of {} on {} {} in {}ms", buildId, buildTypeId, instanceUrl,
+                    collected ? "collected" : "ignored", System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to collect build " + buildId + " of " + buildTypeId + " on " + instanceUrl, e);
+        }
+    }
+
+    // Compared in constant time, the time taken does not tell how much of the token was right
+    private boolean authorized(String header) {
+        return header != null && MessageDigest.isEqual(("Bearer " + settings.getWebhookToken())
+                .getBytes(StandardCharsets.UTF_8), header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the configured server matching {@code instanceUrl}, or the only configured server when none is given
+     */
+    private String findServer(String instanceUrl) {
+        List<String> servers = settings.getServers();
+        if (StringUtils.isEmpty(instanceUrl)) {
+            return servers.size() == 1 ? servers.get(0) : null;
+        }
+        for (String server : servers) {
+            if (StringUtils.removeEnd(server, "/").equalsIgnoreCase(StringUtils.removeEnd(instanceUrl, "/"))) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    private static JSONObject readBody(InputStream body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read = body.read(buffer); read >= 0; read = body.read(buffer)) {
+            bytes.write(buffer, 0, read);
+            if (bytes.size() > MAX_BODY_BYTES) {
+                return null;
+            }
+        }
+        try {
+            Object json = new JSONParser().parse(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+            return json instanceof JSONObject ? (JSONObject) json : null;
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static String str(JSONObject json, String key) {
+        Object value = json.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
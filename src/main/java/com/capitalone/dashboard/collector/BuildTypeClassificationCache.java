@@ -0,0 +1,136 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.TeamcityBuildType;
+import com.capitalone.dashboard.repository.TeamcityBuildTypeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the build type classification of every application project in Mongo. Stored classifications
+ * are served as is; once older than {@code teamcity.buildTypeCacheTtlMinutes} they are rediscovered
+ * in the background so collection never waits on it. A failed discovery stores nothing, the stored
+ * classifications stay until a discovery succeeds.
+ */
+@Component
+public class BuildTypeClassificationCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BuildTypeClassificationCache.class);
+
+    private final TeamcityBuildTypeRepository buildTypeRepository;
+    private final TeamcitySettings settings;
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "teamcity-build-type-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public BuildTypeClassificationCache(TeamcityBuildTypeRepository buildTypeRepository, TeamcitySettings settings) {
+        this.buildTypeRepository = buildTypeRepository;
+        this.settings = settings;
+    }
+
+    /**
+     * Returns the build types of an application project. Nothing is fetched from Teamcity when the
+     * project was classified before.
+     *
+     * @param instanceUrl   Teamcity instance URL
+     * @param applicationId Teamcity application ID
+     * @param discovery     fetches the current build types from Teamcity
+     * @return list of {@link TeamcityBuildType}s
+     */
+    public List<TeamcityBuildType> getBuildTypes(String instanceUrl, String applicationId,
+                                                 Supplier<List<TeamcityBuildType>> discovery) {
+        if (settings.getBuildTypeCacheTtlMinutes() <= 0) {
+            return discover(instanceUrl, applicationId, discovery);
+        }
+        List<TeamcityBuildType> stored = buildTypeRepository.findByInstanceUrlAndApplicationId(instanceUrl, applicationId);
+        if (stored.isEmpty()) {
+            return store(stored, discover(instanceUrl, applicationId, discovery));
+        }
+        long expiry = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(settings.getBuildTypeCacheTtlMinutes());
+        if (stored.stream().anyMatch(buildType -> buildType.getLastRefreshed() < expiry)) {
+            refresh(instanceUrl, applicationId, discovery);
+        }
+        return stored;
+    }
+
+    /**
+     * @return the discovered build types, or none when the discovery failed, which then stores nothing
+     */
+    private static List<TeamcityBuildType> discover(String instanceUrl, String applicationId,
+                                                    Supplier<List<TeamcityBuildType>> discovery) {
+        try {
+            return discovery.get();
+        } catch (RuntimeException e) {
+            LOGGER.error("Discovering build types of " + applicationId + " on " + instanceUrl, e);
+            return Collections.emptyList();
+        }
+    }
+
+    private void refresh(String instanceUrl, String applicationId, Supplier<List<TeamcityBuildType>> discovery) {
+        String key = instanceUrl + '|' + applicationId;
+        if (!refreshing.add(key)) {
+            return;
+        }
+        refresher.execute(() -> {
+            try {
+                store(buildTypeRepository.findByInstanceUrlAndApplicationId(instanceUrl, applicationId), discovery.get());
+            } catch (RuntimeException e) {
+                LOGGER.error("Refreshing build types of " + applicationId + " on " + instanceUrl, e);
+            } finally {
+                refreshing.remove(key);
+            }
+        });
+    }
+
+    private List<TeamcityBuildType> store(List<TeamcityBuildType> stored, List<TeamcityBuildType> discovered) {
+        if (discovered.isEmpty()) {
+            // A failed discovery, or most likely one, keep what we had rather than forgetting every build type
+            return stored;
+        }
+        Map<String, TeamcityBuildType> storedById = new HashMap<>();
+        stored.forEach(buildType -> storedById.put(buildType.getBuildTypeId(), buildType));
+
+        long now = System.currentTimeMillis();
+        int added = 0;
+        int changed = 0;
+        for (TeamcityBuildType buildType : discovered) {
+            TeamcityBuildType existing = storedById.remove(buildType.getBuildTypeId());
+            if (existing == null) {
+                added++;
+            } else {
+                buildType.setId(existing.getId());
+                if (buildType.changedFrom(existing)) {
+                    LOGGER.info("Build type {} changed from {} to {}", buildType.getBuildTypeId(), existing.getType(), buildType.getType());
+                    changed++;
+                }
+            }
+            buildType.setLastRefreshed(now);
+        }
+        buildTypeRepository.save(discovered);
+        buildTypeRepository.delete(new ArrayList<>(storedById.values()));
+        LOGGER.info("Stored {} build types, {} added, {} changed, {} removed", discovered.size(), added, changed, storedById.size());
+        return discovered;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+}
@@ -0,0 +1,159 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.BaseModel;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes documents with unordered bulk operations, so a batch of documents costs one round trip
+ * instead of one per document.
+ */
+@Component
+public class BulkWriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkWriter.class);
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final TeamcitySettings settings;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder batchNanos = new LongAdder();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+
+    @Autowired
+    public BulkWriter(MongoTemplate mongoTemplate, TeamcitySettings settings) {
+        this.mongoTemplate = mongoTemplate;
+        this.settings = settings;
+    }
+
+    public <T extends BaseModel> void save(Class<T> type, Collection<T> saves) {
+        write(type, saves, Collections.emptyList());
+    }
+
+    public <T extends BaseModel> void delete(Class<T> type, Collection<T> deletes) {
+        write(type, Collections.emptyList(), deletes);
+    }
+
+    /**
+     * Saves and deletes documents of one collection. Documents without an id are inserted and get
+     * a new id, the others replace the stored document with the same id. Saves and deletes go in
+     * separate bulks, the deletes are only sent once every save has been executed.
+     * Duplicate key errors are logged and skipped like repository saves did before, a document whose
+     * insert was skipped gets its id taken away again.
+     *
+     * @param type    the document class, which determines the collection
+     * @param saves   documents to insert or replace
+     * @param deletes documents to remove
+     */
+    public <T extends BaseModel> void write(Class<T> type, Collection<T> saves, Collection<T> deletes) {
+        if (saves.isEmpty() && deletes.isEmpty()) {
+            return;
+        }
+        DBCollection collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(type));
+        int batchSize = Math.max(1, settings.getBulkBatchSize());
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        // the document of every request of the bulk that is an insert, null for replacements
+        List<T> inserts = new ArrayList<>();
+        for (T document : saves) {
+            DBObject dbObject = new BasicDBObject();
+            if (document.getId() == null) {
+                document.setId(new ObjectId());
+                mongoTemplate.getConverter().write(document, dbObject);
+                bulk.insert(dbObject);
+                inserts.add(document);
+            } else {
+                mongoTemplate.getConverter().write(document, dbObject);
+                bulk.find(new BasicDBObject("_id", document.getId())).replaceOne(dbObject);
+                inserts.add(null);
+            }
+            if (inserts.size() == batchSize) {
+                executeSaves(collection, bulk, inserts);
+                bulk = collection.initializeUnorderedBulkOperation();
+                inserts = new ArrayList<>();
+            }
+        }
+        if (!inserts.isEmpty()) {
+            executeSaves(collection, bulk, inserts);
+            bulk = collection.initializeUnorderedBulkOperation();
+        }
+        int pending = 0;
+        for (T document : deletes) {
+            bulk.find(new BasicDBObject("_id", document.getId())).removeOne();
+            if (++pending == batchSize) {
+                execute(collection, bulk, pending);
+                bulk = collection.initializeUnorderedBulkOperation();
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            execute(collection, bulk, pending);
+        }
+    }
+
+    private <T extends BaseModel> void executeSaves(DBCollection collection, BulkWriteOperation bulk, List<T> inserts) {
+        for (BulkWriteError error : execute(collection, bulk, inserts.size())) {
+            T inserted = inserts.get(error.getIndex());
+            if (inserted != null) {
+                // Not stored, the id it was given belongs to no document
+                inserted.setId(null);
+            }
+        }
+    }
+
+    /**
+     * @return the skipped duplicate key errors
+     */
+    private List<BulkWriteError> execute(DBCollection collection, BulkWriteOperation bulk, int size) {
+        long start = System.nanoTime();
+        try {
+            bulk.execute();
+            return Collections.emptyList();
+        } catch (BulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+                LOGGER.warn("Duplicate item not written to {}: {}", collection.getName(), error.getMessage());
+            }
+            return e.getWriteErrors();
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            batches.increment();
+            documents.add(size);
+            batchNanos.add(elapsed);
+            maxBatchNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    /**
+     * Logs the batches written since the last call.
+     */
+    public void logStats() {
+        long count = batches.sumThenReset();
+        long written = documents.sumThenReset();
+        long nanos = batchNanos.sumThenReset();
+        long maxNanos = maxBatchNanos.getAndSet(0);
+        LOGGER.info("Bulk writes: batches={} documents={} totalMs={} avgBatchMs={} maxBatchMs={}", count, written,
+                TimeUnit.NANOSECONDS.toMillis(nanos), count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos / count),
+                TimeUnit.NANOSECONDS.toMillis(maxNanos));
+    }
+}
@@ -0,0 +1,91 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Commit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves build revisions to the {@link Commit}s collected by the SCM collectors. Revisions missing
+ * from the LRU are looked up with a single $in query. Revisions Hygieia does not know yet are
+ * remembered for {@code teamcity.commitMissTtlMinutes} before they are looked up again.
+ */
+@Component
+public class CommitResolver {
+    private final MongoTemplate mongoTemplate;
+    private final TeamcitySettings settings;
+    private final Map<String, Commit> commits;
+    // revision -> time the miss expires
+    private final Map<String, Long> misses;
+
+    @Autowired
+    public CommitResolver(MongoTemplate mongoTemplate, TeamcitySettings settings) {
+        this.mongoTemplate = mongoTemplate;
+        this.settings = settings;
+        this.commits = new LinkedHashMap<String, Commit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                return size() > settings.getCommitCacheSize();
+            }
+        };
+        this.misses = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > settings.getCommitCacheSize();
+            }
+        };
+    }
+
+    /**
+     * @param revisions build revisions
+     * @return the known commits by revision, revisions without a commit are left out
+     */
+    public Map<String, Commit> resolve(Collection<String> revisions) {
+        Map<String, Commit> resolved = new HashMap<>();
+        Set<String> lookups = new LinkedHashSet<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (String revision : revisions) {
+                Commit commit = commits.get(revision);
+                if (commit != null) {
+                    resolved.put(revision, commit);
+                    continue;
+                }
+                Long missExpiry = misses.get(revision);
+                if (missExpiry == null || missExpiry < now) {
+                    lookups.add(revision);
+                }
+            }
+        }
+        if (lookups.isEmpty()) {
+            return resolved;
+        }
+        for (Commit commit : mongoTemplate.find(new Query(Criteria.where("scmRevisionNumber").in(lookups)), Commit.class)) {
+            // the first commit found wins when several repositories contain the revision
+            resolved.putIfAbsent(commit.getScmRevisionNumber(), commit);
+        }
+        long missExpiry = now + TimeUnit.MINUTES.toMillis(settings.getCommitMissTtlMinutes());
+        synchronized (this) {
+            for (String revision : lookups) {
+                Commit commit = resolved.get(revision);
+                if (commit != null) {
+                    commits.put(revision, commit);
+                    misses.remove(revision);
+                } else if (settings.getCommitMissTtlMinutes() > 0) {
+                    misses.put(revision, missExpiry);
+                }
+            }
+        }
+        return resolved;
+    }
+}
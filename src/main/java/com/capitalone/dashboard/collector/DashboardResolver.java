@@ -0,0 +1,110 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.BaseModel;
+import com.capitalone.dashboard.model.Collector;
+import com.capitalone.dashboard.model.CollectorItem;
+import com.capitalone.dashboard.model.CollectorType;
+import com.capitalone.dashboard.model.Component;
+import com.capitalone.dashboard.repository.CollectorItemRepository;
+import com.capitalone.dashboard.repository.CollectorRepository;
+import com.capitalone.dashboard.repository.ComponentRepository;
+import com.capitalone.dashboard.repository.DashboardRepository;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves the dashboards of a Teamcity application and the Product collector items of a dashboard.
+ * Lookups are cached until {@link #clear()} is called at the end of a collection cycle.
+ */
+@org.springframework.stereotype.Component
+public class DashboardResolver {
+    private final CollectorRepository collectorRepository;
+    private final CollectorItemRepository collectorItemRepository;
+    private final ComponentRepository componentRepository;
+    private final DashboardRepository dashboardRepository;
+
+    // collectorId -> applicationId -> deployment collector item
+    private final Map<ObjectId, Map<String, CollectorItem>> deploymentItems = new HashMap<>();
+    // collectorId|applicationId -> dashboard ids
+    private final Map<String, List<String>> dashboardIds = new HashMap<>();
+    // dashboardId -> Product collector items, null until first used in a cycle
+    private Map<String, List<CollectorItem>> productItems;
+
+    @Autowired
+    public DashboardResolver(CollectorRepository collectorRepository,
+                             @Qualifier("collectorItemRepository") CollectorItemRepository collectorItemRepository,
+                             ComponentRepository componentRepository,
+                             DashboardRepository dashboardRepository) {
+        this.collectorRepository = collectorRepository;
+        this.collectorItemRepository = collectorItemRepository;
+        this.componentRepository = componentRepository;
+        this.dashboardRepository = dashboardRepository;
+    }
+
+    /**
+     * @return ids of the dashboards showing the application's deployment collector item
+     */
+    public synchronized List<String> getDashboardIds(ObjectId collectorId, String applicationId) {
+        return dashboardIds.computeIfAbsent(collectorId + "|" + applicationId, key -> {
+            CollectorItem collectorItem = getDeploymentItems(collectorId).get(applicationId);
+            if (collectorItem == null) {
+                return Collections.emptyList();
+            }
+            List<Component> components = componentRepository
+                    .findByDeployCollectorItemId(collectorItem.getId());
+            List<ObjectId> componentIds = components.stream().map(BaseModel::getId).collect(Collectors.toList());
+            return dashboardRepository.findByApplicationComponentIdsIn(componentIds).stream()
+                    .map(d -> d.getId().toString()).distinct().collect(Collectors.toList());
+        });
+    }
+
+    /**
+     * @return the Product collector items of a dashboard
+     */
+    public synchronized List<CollectorItem> getProductItems(String dashboardId) {
+        if (productItems == null) {
+            productItems = new HashMap<>();
+            List<Collector> collectorList = collectorRepository.findByCollectorType(CollectorType.Product);
+            List<CollectorItem> collectorItemList = collectorItemRepository.findByCollectorIdIn(
+                    collectorList.stream().map(BaseModel::getId).collect(Collectors.toList()));
+            for (CollectorItem collectorItem : collectorItemList) {
+                Object id = collectorItem.getOptions().get("dashboardId");
+                if (id != null) {
+                    productItems.computeIfAbsent(id.toString(), k -> new ArrayList<>()).add(collectorItem);
+                }
+            }
+        }
+        return productItems.getOrDefault(dashboardId, Collections.emptyList());
+    }
+
+    /**
+     * Forgets everything resolved so far, dashboards added in the meantime are picked up next cycle.
+     */
+    public synchronized void clear() {
+        deploymentItems.clear();
+        dashboardIds.clear();
+        productItems = null;
+    }
+
+    private Map<String, CollectorItem> getDeploymentItems(ObjectId collectorId) {
+        return deploymentItems.computeIfAbsent(collectorId, id -> {
+            Map<String, CollectorItem> byApplicationId = new HashMap<>();
+            for (CollectorItem item : collectorItemRepository.findByCollectorIdIn(Collections.singletonList(id))) {
+                Object applicationId = item.getOptions().get("applicationId");
+                if (applicationId != null) {
+                    // the first item wins, as with the former stream findFirst
+                    byApplicationId.putIfAbsent(applicationId.toString(), item);
+                }
+            }
+            return byApplicationId;
+        });
+    }
+}
@@ -1,9 +1,10 @@
 package com.capitalone.dashboard.collector;
 
 import com.capitalone.dashboard.model.*;
-import com.capitalone.dashboard.repository.CommitRepository;
 import com.capitalone.dashboard.util.Supplier;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -14,15 +15,21 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestOperations;
+import org.springframework.web.util.UriComponentsBuilder;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 @Component
@@ -37,16 +44,64 @@ public class DefaultTeamcityClient implements TeamcityClient {
     private static final String BUILD_DETAILS_URL_SUFFIX = "app/rest/builds";
 
     private static final String BUILD_TYPE_DETAILS_URL_SUFFIX = "app/rest/buildTypes";
-    private CommitRepository commitRepository;
+
+    private static final String BUILD_LIST_FIELDS =
+            "build(id,buildTypeId,status,state,branchName,buildType(name),triggered(date),revisions(revision(version)))";
+
+    // Branch matchers Teamcity can match itself, see branchLocator. A dot would match any character locally.
+    private static final Pattern PLAIN_BRANCH_NAME = Pattern.compile("[A-Za-z0-9_/-]+");
+
+    // Builds per page in latest only mode, see getEnvironmentResourceStatusData
+    private static final int LATEST_ONLY_PAGE_SIZE = 20;
+
+    // Builds per change feed request, see getRecentBuilds
+    private static final int FEED_PAGE_SIZE = 500;
+
+    private static final String BUILD_TYPE_LIST_FIELDS = "buildType(id,name,projectId,settings(property(name,value)))";
+
+    // Instances that do not support nested fields on the builds listing, see getBuilds
+    private final Set<String> fieldsProjectionUnsupported = ConcurrentHashMap.newKeySet();
+
+    // Instances that do not support the affectedProject build types lookup, see findBuildTypesOfAffectedProject
+    private final Set<String> affectedProjectUnsupported = ConcurrentHashMap.newKeySet();
+
+    // Concurrent request permits per server, see TeamcitySettings.getMaxRequestsPerServer
+    private final Map<String, Semaphore> serverPermits = new ConcurrentHashMap<>();
+    private CommitResolver commitResolver;
     private PipelineCommitProcessor pipelineCommitProcessor;
+    private BuildTypeClassificationCache buildTypeCache;
+    private FinishedBuildCache finishedBuildCache;
+    private final Pattern branchPattern;
+    private final Pattern pipelineIgnorePattern;
+    private final String branchLocator;
 
     @Autowired
     public DefaultTeamcityClient(TeamcitySettings teamcitySettings,
-                                 Supplier<RestOperations> restOperationsSupplier, CommitRepository commitRepository, PipelineCommitProcessor pipelineCommitProcessor) {
+                                 Supplier<RestOperations> restOperationsSupplier, CommitResolver commitResolver, PipelineCommitProcessor pipelineCommitProcessor,
+                                 BuildTypeClassificationCache buildTypeCache, FinishedBuildCache finishedBuildCache) {
         this.settings = teamcitySettings;
         this.rest = restOperationsSupplier.get();
-        this.commitRepository = commitRepository;
+        this.commitResolver = commitResolver;
         this.pipelineCommitProcessor = pipelineCommitProcessor;
+        this.buildTypeCache = buildTypeCache;
+        this.finishedBuildCache = finishedBuildCache;
+        this.branchPattern = Pattern.compile(settings.getBranchMatcher());
+        this.pipelineIgnorePattern = Pattern.compile(settings.getPipelineIgnoreMatcher());
+        this.branchLocator = branchLocator(settings.getBranchMatcher());
+    }
+
+    /**
+     * Lets Teamcity filter on the branch when the matcher is a plain branch name, builds of any branch
+     * are requested and matched locally otherwise.
+     */
+    static String branchLocator(String branchMatcher) {
+        return PLAIN_BRANCH_NAME.matcher(branchMatcher).matches()
+                ? "branch:(name:" + branchMatcher + ")" : "branch:default:any";
+    }
+
+    @Override
+    public void clearCache() {
+        pipelineCommitProcessor.clearCache();
     }
 
     @Override
@@ -54,280 +109,467 @@ public class DefaultTeamcityClient implements TeamcityClient {
         LOGGER.debug("Enter getApplications");
         List<TeamcityApplication> applications = new ArrayList<>();
         for (String projectID : settings.getProjectIds()) {
-            JSONArray buildTypes = new JSONArray();
-            recursivelyFindBuildTypes(instanceUrl, projectID, buildTypes);
-            constructApplication(applications, buildTypes, projectID, instanceUrl);
+            if (!getDeploymentBuildTypes(instanceUrl, projectID).isEmpty()) {
+                LOGGER.debug("Process projectName " + projectID);
+                TeamcityApplication application = new TeamcityApplication();
+                application.setInstanceUrl(instanceUrl);
+                application.setApplicationName(projectID);
+                application.setApplicationId(projectID);
+                applications.add(application);
+            }
         }
         return applications;
     }
 
-    private void constructApplication(List<TeamcityApplication> applications, JSONArray buildTypes, String projectID, String instanceUrl) {
-        for (Object buildType : buildTypes) {
-            JSONObject jsonBuildType = (JSONObject) buildType;
-            final String buildTypeID = getId(jsonBuildType);
+    @Override
+    public List<Environment> getEnvironments(TeamcityApplication application) {
+        return getDeploymentBuildTypes(application.getInstanceUrl(), application.getApplicationId());
+    }
+
+    private List<Environment> getDeploymentBuildTypes(String instanceUrl, String projectID) {
+        List<Environment> environments = new ArrayList<>();
+        // Discoveries may run in the background, each one keeps its responses to itself
+        for (TeamcityBuildType buildType : buildTypeCache.getBuildTypes(instanceUrl, projectID,
+                () -> discoverBuildTypes(instanceUrl, projectID, new HashMap<>()))) {
+            if (buildType.isDeployment()) {
+                environments.add(new Environment(buildType.getBuildTypeId(), buildType.getName()));
+            }
+        }
+        return environments;
+    }
+
+    /**
+     * Fetches and classifies every build type of a project and its sub projects.
+     *
+     * @param responses project and build type responses already fetched by this discovery, keyed by url
+     * @throws org.springframework.web.client.RestClientException if any response could not be read, a
+     *                                                            partial discovery is never returned
+     */
+    private List<TeamcityBuildType> discoverBuildTypes(String instanceUrl, String projectID,
+                                                       Map<String, JSONObject> responses) {
+        List<TeamcityBuildType> buildTypes = findBuildTypesOfAffectedProject(instanceUrl, projectID, responses);
+        if (buildTypes != null) {
+            return buildTypes;
+        }
+        buildTypes = new ArrayList<>();
+        JSONArray jsonBuildTypes = new JSONArray();
+        recursivelyFindBuildTypes(instanceUrl, projectID, jsonBuildTypes, responses);
+        for (Object buildType : jsonBuildTypes) {
+            final String buildTypeID = getId((JSONObject) buildType);
             try {
-                if (isDeploymentBuildType(buildTypeID, instanceUrl)) {
-                    LOGGER.debug("Process projectName " + projectID);
-                    TeamcityApplication application = new TeamcityApplication();
-                    application.setInstanceUrl(instanceUrl);
-                    application.setApplicationName(projectID);
-                    application.setApplicationId(projectID);
-                    applications.add(application);
-                    break;
+                JSONObject object = getCachedJson(responses, buildTypeUrl(instanceUrl, buildTypeID));
+                if (!object.isEmpty()) {
+                    buildTypes.add(toBuildType(instanceUrl, projectID, object));
                 }
-            } catch (ParseException e) {
-                LOGGER.error("Parsing jobs details on instance: " + instanceUrl, e);
+            } catch (HttpClientErrorException hce) {
+                // Removed since the project was listed
+                if (hce.getStatusCode() != HttpStatus.NOT_FOUND) {
+                    throw hce;
+                }
+                LOGGER.warn("Build type {} on {} no longer exists", buildTypeID, instanceUrl);
             }
         }
+        return buildTypes;
     }
 
-    private Boolean isDeploymentBuildType(String buildTypeID, String instanceUrl) throws ParseException {
+    /**
+     * Finds the build types of a project and all of its sub projects with a single
+     * affectedProject request, classifying them locally from their settings.
+     *
+     * @return the build types, or null if the instance does not support this lookup
+     * and the project tree has to be walked instead. Only a rejected lookup or a response without
+     * the requested fields tells so, other failures propagate and are tried again next time.
+     */
+    private List<TeamcityBuildType> findBuildTypesOfAffectedProject(String instanceUrl, String projectID,
+                                                                    Map<String, JSONObject> responses) {
+        if (!settings.isAffectedProjectDiscovery() || affectedProjectUnsupported.contains(instanceUrl)) {
+            return null;
+        }
         try {
-            String buildTypesUrl = joinURL(instanceUrl, new String[]{String.format("%s/id:%s", BUILD_TYPE_DETAILS_URL_SUFFIX, buildTypeID)});
-            LOGGER.info("isDeploymentBuildType Fetching build types details for {}", buildTypesUrl);
-            ResponseEntity<String> responseEntity = makeRestCall(buildTypesUrl);
-            String returnJSON = responseEntity.getBody();
-            if (StringUtils.isEmpty(returnJSON)) {
-                return false;
-            }
-            JSONParser parser = new JSONParser();
-            JSONObject object = (JSONObject) parser.parse(returnJSON);
-
-            if (object.isEmpty()) {
-                return false;
-            }
-            JSONObject buildTypesObject = (JSONObject) object.get("settings");
-            JSONArray properties = getJsonArray(buildTypesObject, "property");
-            if (properties.size() == 0) {
-                return false;
+            String url = joinURL(instanceUrl, new String[]{String.format("%s?locator=affectedProject:(id:%s)&fields=%s",
+                    BUILD_TYPE_DETAILS_URL_SUFFIX, projectID, BUILD_TYPE_LIST_FIELDS)});
+            JSONArray jsonBuildTypes = getJsonArray(getCachedJson(responses, url), "buildType");
+            boolean projected = jsonBuildTypes.isEmpty();
+            for (Object buildType : jsonBuildTypes) {
+                projected |= ((JSONObject) buildType).containsKey("settings");
             }
-            for (Object property : properties) {
-                JSONObject jsonProperty = (JSONObject) property;
-                String propertyName = jsonProperty.get("name").toString();
-                if (!propertyName.equals("buildConfigurationType")) continue;
-                String propertyValue = jsonProperty.get("value").toString();
-                return propertyValue.equals("DEPLOYMENT");
+            if (projected) {
+                List<TeamcityBuildType> buildTypes = new ArrayList<>();
+                for (Object buildType : jsonBuildTypes) {
+                    buildTypes.add(toBuildType(instanceUrl, projectID, (JSONObject) buildType));
+                }
+                return buildTypes;
             }
+            LOGGER.warn("{} ignored the build types fields spec, falling back to walking the project tree", instanceUrl);
         } catch (HttpClientErrorException hce) {
-            LOGGER.error("http client exception loading build details", hce);
+            if (hce.getStatusCode() != HttpStatus.BAD_REQUEST) {
+                throw hce;
+            }
+            LOGGER.warn("{} rejected the affectedProject build types lookup, falling back to walking the project tree", instanceUrl);
         }
-        return false;
+        affectedProjectUnsupported.add(instanceUrl);
+        return null;
     }
 
-    private void recursivelyFindBuildTypes(String instanceUrl, String projectID, JSONArray buildTypes) {
-        try {
-            String url = joinURL(instanceUrl, new String[]{PROJECT_API_URL_SUFFIX + "/id:" + projectID});
-            LOGGER.info("Fetching project details for {}", url);
-            ResponseEntity<String> responseEntity = makeRestCall(url);
-            if (responseEntity == null) {
-                return;
-            }
-            String returnJSON = responseEntity.getBody();
-            if (StringUtils.isEmpty(returnJSON)) {
-                return;
-            }
-            JSONParser parser = new JSONParser();
-            JSONObject object = (JSONObject) parser.parse(returnJSON);
-            JSONObject subProjectsObject = (JSONObject) object.get("projects");
-            JSONArray subProjects = getJsonArray(subProjectsObject, "project");
-            JSONObject buildTypesObject = (JSONObject) object.get("buildTypes");
-            JSONArray buildType = getJsonArray(buildTypesObject, "buildType");
-            if (subProjects.size() == 0 && buildType.size() == 0) {
-                return;
-            }
-            buildTypes.addAll(buildType);
-            if (subProjects.size() > 0) {
-                for (Object subProject : subProjects) {
-                    JSONObject jsonSubProject = (JSONObject) subProject;
-                    final String subProjectID = getId(jsonSubProject);
-                    recursivelyFindBuildTypes(instanceUrl, subProjectID, buildTypes);
-                }
+    private TeamcityBuildType toBuildType(String instanceUrl, String projectID, JSONObject jsonBuildType) {
+        TeamcityBuildType buildType = new TeamcityBuildType();
+        buildType.setInstanceUrl(instanceUrl);
+        buildType.setApplicationId(projectID);
+        buildType.setBuildTypeId(getId(jsonBuildType));
+        buildType.setName(str(jsonBuildType, "name"));
+        buildType.setProjectId(str(jsonBuildType, "projectId"));
+        buildType.setType(getBuildConfigurationType(jsonBuildType));
+        return buildType;
+    }
+
+    private String getBuildConfigurationType(JSONObject buildType) {
+        if (buildType.get("settings") == null) {
+            return TeamcityBuildType.REGULAR;
+        }
+        JSONObject buildTypesObject = (JSONObject) buildType.get("settings");
+        JSONArray properties = getJsonArray(buildTypesObject, "property");
+        for (Object property : properties) {
+            JSONObject jsonProperty = (JSONObject) property;
+            String propertyName = jsonProperty.get("name").toString();
+            if (!propertyName.equals("buildConfigurationType")) continue;
+            return jsonProperty.get("value").toString();
+        }
+        return TeamcityBuildType.REGULAR;
+    }
+
+    private void recursivelyFindBuildTypes(String instanceUrl, String projectID, JSONArray buildTypes,
+                                           Map<String, JSONObject> responses) {
+        String url = joinURL(instanceUrl, new String[]{PROJECT_API_URL_SUFFIX + "/id:" + projectID});
+        JSONObject object = getCachedJson(responses, url);
+        if (object.isEmpty()) {
+            return;
+        }
+        JSONObject subProjectsObject = (JSONObject) object.get("projects");
+        JSONArray subProjects = getJsonArray(subProjectsObject, "project");
+        JSONObject buildTypesObject = (JSONObject) object.get("buildTypes");
+        JSONArray buildType = getJsonArray(buildTypesObject, "buildType");
+        if (subProjects.size() == 0 && buildType.size() == 0) {
+            return;
+        }
+        buildTypes.addAll(buildType);
+        if (subProjects.size() > 0) {
+            for (Object subProject : subProjects) {
+                JSONObject jsonSubProject = (JSONObject) subProject;
+                final String subProjectID = getId(jsonSubProject);
+                recursivelyFindBuildTypes(instanceUrl, subProjectID, buildTypes, responses);
             }
-        } catch (ParseException e) {
-            LOGGER.error("Parsing jobs details on instance: " + instanceUrl, e);
         }
     }
 
-    @Override
-    public List<Environment> getEnvironments(TeamcityApplication application) {
-        List<Environment> environments = new ArrayList<>();
-        JSONArray buildTypes = new JSONArray();
-        recursivelyFindBuildTypes(application.getInstanceUrl(), application.getApplicationId(), buildTypes);
-        constructEnvironment(environments, application, buildTypes);
-        return environments;
+    /**
+     * Fetches one page of the successful builds of an environment, rejected builds never leave the server.
+     *
+     * @param untilBuildId the oldest build of the previous page, 0 for the first page
+     */
+    private List<TeamcityBuildRecord> getBuildDetailsForTeamcityProjectPaginated(TeamcityApplication application, Environment environment,
+                                                                                TeamcityBuildWatermark watermark, long horizon,
+                                                                                long untilBuildId, int buildsCount) {
+        String allBuildsUrl = joinURL(application.getInstanceUrl(), new String[]{BUILD_DETAILS_URL_SUFFIX});
+        LOGGER.info("Fetching builds for project {}", allBuildsUrl);
+        // Only successful builds are deployments, failed ones are excluded on the server rather than dropped here
+        String locator = String.format("buildType:%s,status:SUCCESS,count:%d,%s", environment.getId(), buildsCount,
+                branchLocator) + untilBuild(untilBuildId);
+        long sinceDate = horizon;
+        long watermarkDate = watermark == null ? 0 : Math.max(watermark.getLastTriggeredDate(), watermark.getLastPolledDate());
+        if (watermarkDate > 0) {
+            // Build ids are assigned when builds are queued, so a build below the watermark may finish after it.
+            // Builds started within the overlap before the watermark are read again, collecting them twice is harmless.
+            sinceDate = Math.max(sinceDate, watermarkDate - TimeUnit.MINUTES.toMillis(settings.getWatermarkOverlapMinutes()));
+        } else if (watermark != null && watermark.getLastBuildId() > 0) {
+            locator += String.format(",sinceBuild:(id:%d)", watermark.getLastBuildId());
+        }
+        if (sinceDate > 0) {
+            locator += ",sinceDate:" + locatorDate(sinceDate);
+        }
+        String url = joinURL(allBuildsUrl, new String[]{"?locator=" + locator});
+        return olderThan(getBuilds(application.getInstanceUrl(), allBuildsUrl, url), untilBuildId);
     }
 
-    private void constructEnvironment(List<Environment> environments, TeamcityApplication application, JSONArray buildTypes) {
-        for (Object buildType : buildTypes) {
-            JSONObject jsonBuildType = (JSONObject) buildType;
-            final String buildTypeID = getId(jsonBuildType);
-            try {
-                if (isDeploymentBuildType(buildTypeID, application.getInstanceUrl())) {
-                    String buildTypesUrl = joinURL(application.getInstanceUrl(), new String[]{String.format("%s/id:%s", BUILD_TYPE_DETAILS_URL_SUFFIX, buildTypeID)});
-                    LOGGER.info("Fetching build types details for {}", buildTypesUrl);
-                    ResponseEntity<String> responseEntity;
-                    responseEntity = makeRestCall(buildTypesUrl);
-                    String returnJSON = responseEntity.getBody();
-                    if (StringUtils.isEmpty(returnJSON)) {
-                        break;
-                    }
-                    JSONParser parser = new JSONParser();
-                    JSONObject object = (JSONObject) parser.parse(returnJSON);
-                    if (object.isEmpty()) {
-                        break;
-                    }
-                    environments.add(new Environment(str(object, "id"), str(
-                            object, "name")));
-                }
-            } catch (ParseException e) {
-                LOGGER.error("Parsing jobs details on instance: " + application.getInstanceUrl(), e);
+    /**
+     * Pages continue below the oldest build of the previous page. Unlike start offsets, builds that
+     * finish while the pages are read do not shift the pages, so no build is skipped or read twice.
+     */
+    private static String untilBuild(long untilBuildId) {
+        return untilBuildId > 0 ? String.format(",untilBuild:(id:%d)", untilBuildId) : "";
+    }
+
+    /**
+     * @return the builds below {@code untilBuildId}, the build a page continues from is not read again
+     */
+    private static List<TeamcityBuildRecord> olderThan(List<TeamcityBuildRecord> builds, long untilBuildId) {
+        if (untilBuildId <= 0) {
+            return builds;
+        }
+        List<TeamcityBuildRecord> older = new ArrayList<>();
+        for (TeamcityBuildRecord build : builds) {
+            if (NumberUtils.toLong(build.getBuildId()) < untilBuildId) {
+                older.add(build);
             }
         }
+        return older;
+    }
+
+    /**
+     * @return the id of the last build of a page, the oldest one as builds are listed newest first
+     */
+    private static long lastBuildId(List<TeamcityBuildRecord> builds) {
+        return NumberUtils.toLong(builds.get(builds.size() - 1).getBuildId());
     }
 
-    private List<TeamcityEnvResCompData> getBuildDetailsForTeamcityProjectPaginated(TeamcityApplication application, Environment environment, int startCount, int buildsCount) throws ParseException {
+    /**
+     * Derives deployment data from builds of an environment and adds the commits they deployed
+     * to {@code allPipelineCommits}.
+     */
+    private List<TeamcityEnvResCompData> toEnvironmentData(TeamcityApplication application, Environment environment,
+                                                           List<TeamcityBuildRecord> builds,
+                                                           Map<String, PipelineCommit> allPipelineCommits) {
         List<TeamcityEnvResCompData> environmentStatuses = new ArrayList<>();
-        try {
-            String allBuildsUrl = joinURL(application.getInstanceUrl(), new String[]{BUILD_DETAILS_URL_SUFFIX});
-            LOGGER.info("Fetching builds for project {}", allBuildsUrl);
-            //TODO This may only return the successful builds. We may want to get failed builds and show them too
-            String url = joinURL(allBuildsUrl, new String[]{String.format("?locator=buildType:%s,count:%d,start:%d,branch:default:any", environment.getId(), buildsCount, startCount)});
-            ResponseEntity<String> responseEntity = makeRestCall(url);
-            String returnJSON = responseEntity.getBody();
-            if (StringUtils.isEmpty(returnJSON)) {
-                return Collections.emptyList();
+        List<TeamcityBuildRecord> deployedBuilds = new ArrayList<>();
+        for (TeamcityBuildRecord build : builds) {
+            String buildID = build.getBuildId();
+            LOGGER.debug(" buildNumber: " + buildID);
+            // Teamcity already filtered on status and plain branch names, builds from the cache or of
+            // branch patterns still have to be checked
+            if (!isDeployed(build.getStatus())) continue;
+            String branchName = StringUtils.defaultString(build.getBranchName());
+            if (!branchPattern.matcher(branchName).matches()) {
+                continue;
             }
-            JSONParser parser = new JSONParser();
-            JSONObject object = (JSONObject) parser.parse(returnJSON);
-
-            if (object.isEmpty()) {
-                return Collections.emptyList();
+            String pipelineName = StringUtils.defaultString(build.getBuildTypeName());
+            if (pipelineIgnorePattern.matcher(pipelineName).matches()) {
+                continue;
             }
-            List<PipelineCommit> allPipelineCommits = new ArrayList<>();
-            JSONArray jsonBuilds = getJsonArray(object, "build");
-            for (Object build : jsonBuilds) {
-                JSONObject jsonBuild = (JSONObject) build;
-                // A basic Build object. This will be fleshed out later if this is a new Build.
-                String buildID = jsonBuild.get("id").toString();
-                LOGGER.debug(" buildNumber: " + buildID);
-                String buildURL = String.format("%s/id:%s", allBuildsUrl, buildID);
-                responseEntity = makeRestCall(buildURL);
-                returnJSON = responseEntity.getBody();
-                if (StringUtils.isEmpty(returnJSON)) {
-                    return Collections.emptyList();
-                }
-                parser = new JSONParser();
-                JSONObject buildJson = (JSONObject) parser.parse(returnJSON);
-                if (!isDeployed(buildJson.get("status").toString())) continue;
-                String branchName = buildJson.get("branchName").toString();
-                Pattern branchMatcherRegex = Pattern.compile(settings.getBranchMatcher());
-                boolean mustAnalyzeBranch =
-                        branchMatcherRegex.matcher(branchName).matches();
-                if (!mustAnalyzeBranch) {
-                    continue;
-                }
-                Pattern pipelineIgnorePattern = Pattern.compile(settings.getPipelineIgnoreMatcher());
-                String pipelineName = (String) ((JSONObject)buildJson.get("buildType")).get("name");
-                if (pipelineIgnorePattern.matcher(pipelineName).matches()) {
-                    continue;
-                }
 
-                JSONObject triggeredObject = (JSONObject) buildJson.get("triggered");
-                String dateInString = triggeredObject.get("date").toString();
-                long time = getTimeInMillis(dateInString);
+            long time = build.getTriggeredDate();
 
-                TeamcityEnvResCompData deployData = new TeamcityEnvResCompData();
+            TeamcityEnvResCompData deployData = new TeamcityEnvResCompData();
 
-                deployData.setCollectorItemId(application.getId());
-                deployData.setEnvironmentName(environment.getName());
+            deployData.setCollectorItemId(application.getId());
+            deployData.setEnvironmentName(environment.getName());
 
-                deployData.setComponentID(buildID);
-                deployData.setComponentName(application.getApplicationName());
-                deployData.setDeployed(true);
-                deployData.setAsOfDate(time);
-                deployData.setOnline(true);
-                deployData.setResourceName("teamcity-runner");
-                environmentStatuses.add(deployData);
-
-
-                //TODO Do the following only if the deployment is successful
-                PipelineCommit pipelineCommit = getPipelineCommit(buildID, buildJson,
-                        time);
-                if (pipelineCommit == null) {
-                    continue;
-                }
-                if (allPipelineCommits.stream().noneMatch(pc -> pc.getScmRevisionNumber().equalsIgnoreCase(pipelineCommit.getScmRevisionNumber()))) {
-                    allPipelineCommits.add(pipelineCommit);
-                } else {
-                    //If the incoming pipelineCommit has a smaller timestamp, remove the original one and add the incoming one
-                    Optional<PipelineCommit> existingPipelineCommit = allPipelineCommits.stream().filter(pc ->
-                            pc.getScmRevisionNumber().equalsIgnoreCase(pipelineCommit.getScmRevisionNumber()) &&
-                                    pc.getTimestamp() > pipelineCommit.getTimestamp()).findFirst();
-                    if (existingPipelineCommit.isPresent()) {
-                        PipelineCommit existingPc = existingPipelineCommit.get();
-                        LOGGER.info("Replacing timestamp {} with {} for commit {}", existingPc.getTimestamp(),
-                                pipelineCommit.getTimestamp(),
-                                existingPc.getScmRevisionNumber());
-                        allPipelineCommits.remove(existingPc);
-                        allPipelineCommits.add(pipelineCommit);
-                    }
-                }
-                allPipelineCommits.add(pipelineCommit);
+            deployData.setComponentID(buildID);
+            deployData.setComponentName(application.getApplicationName());
+            deployData.setDeployed(true);
+            deployData.setAsOfDate(time);
+            deployData.setOnline(true);
+            deployData.setResourceName("teamcity-runner");
+            environmentStatuses.add(deployData);
+            deployedBuilds.add(build);
+        }
 
+        // The revisions of the whole page are resolved with one lookup
+        Set<String> revisions = new HashSet<>();
+        for (TeamcityBuildRecord build : deployedBuilds) {
+            if (build.getRevision() == null) {
+                LOGGER.warn("No revision detected for build " + build.getBuildId());
+            } else {
+                revisions.add(build.getRevision());
             }
-            application.setEnvironment(environment.getName());
-            pipelineCommitProcessor.processPipelineCommits(allPipelineCommits,
-                    application);
-        } catch (HttpClientErrorException hce) {
-            LOGGER.error("http client exception loading build details", hce);
+        }
+        Map<String, Commit> commits = commitResolver.resolve(revisions);
+        for (TeamcityBuildRecord build : deployedBuilds) {
+            Commit commit = build.getRevision() == null ? null : commits.get(build.getRevision());
+            if (commit == null) {
+                continue;
+            }
+            PipelineCommit pipelineCommit = new PipelineCommit(commit, build.getTriggeredDate());
+            // One entry per revision, a commit counts as deployed from its earliest deployment
+            allPipelineCommits.merge(pipelineCommit.getScmRevisionNumber().toLowerCase(Locale.ROOT), pipelineCommit,
+                    (existing, incoming) -> incoming.getTimestamp() < existing.getTimestamp() ? incoming : existing);
         }
         return environmentStatuses;
+    }
 
+    @Override
+    public Map<String, List<TeamcityBuildRecord>> getRecentBuilds(String instanceUrl, long sinceDate) {
+        Map<String, List<TeamcityBuildRecord>> buildsByType = new HashMap<>();
+        String allBuildsUrl = joinURL(instanceUrl, new String[]{BUILD_DETAILS_URL_SUFFIX});
+        String since = locatorDate(sinceDate);
+        int count = 0;
+        long untilBuildId = 0;
+        while (true) {
+            String locator = String.format("sinceDate:%s,defaultFilter:false,state:finished,status:SUCCESS,personal:false,%s,count:%d",
+                    since, branchLocator, FEED_PAGE_SIZE) + untilBuild(untilBuildId);
+            List<TeamcityBuildRecord> builds = olderThan(getBuilds(instanceUrl, allBuildsUrl,
+                    joinURL(allBuildsUrl, new String[]{"?locator=" + locator})), untilBuildId);
+            if (builds.isEmpty()) {
+                break;
+            }
+            for (TeamcityBuildRecord build : builds) {
+                if (build.getBuildTypeId() != null) {
+                    buildsByType.computeIfAbsent(build.getBuildTypeId(), k -> new ArrayList<>()).add(build);
+                    count++;
+                }
+            }
+            untilBuildId = lastBuildId(builds);
+        }
+        LOGGER.info("{} builds of {} build types on {} since {}", count, buildsByType.size(), instanceUrl,
+                TeamcityBuildReader.toDate(sinceDate));
+        return buildsByType;
     }
 
+    @Override
+    public List<TeamcityEnvResCompData> getEnvironmentResourceStatusData(TeamcityApplication application, Environment environment,
+                                                                         TeamcityBuildWatermark watermark, List<TeamcityBuildRecord> builds) {
+        // Builds below the watermark are kept, a build queued before the watermark may have finished only now.
+        // Those collected before are matched to the stored data and not written again.
+        Map<String, PipelineCommit> pipelineCommits = new HashMap<>();
+        List<TeamcityEnvResCompData> components = settings.isLatestOnly(application.getApplicationId())
+                ? latestDeployment(application, environment, builds, pipelineCommits)
+                : toEnvironmentData(application, environment, builds, pipelineCommits);
+        processPipelineCommits(application, environment, pipelineCommits);
+        return components;
+    }
 
-    private PipelineCommit getPipelineCommit(String buildID, JSONObject deployableObject, long timestamp) {
+    /**
+     * @return a date for a locator, with the offset sign encoded as a plain + would reach Teamcity as a space
+     */
+    private static String locatorDate(long millis) {
+        return TeamcityBuildReader.toDate(millis).replace("+", "%2B");
+    }
 
-        JSONObject revisions = (JSONObject) deployableObject.get("revisions");
+    /**
+     * Derives the deployment data of the newest build that counts as a deployment, builds are listed newest first.
+     */
+    private List<TeamcityEnvResCompData> latestDeployment(TeamcityApplication application, Environment environment,
+                                                          List<TeamcityBuildRecord> builds,
+                                                          Map<String, PipelineCommit> allPipelineCommits) {
+        for (TeamcityBuildRecord build : builds) {
+            List<TeamcityEnvResCompData> components = toEnvironmentData(application, environment,
+                    Collections.singletonList(build), allPipelineCommits);
+            if (!components.isEmpty()) {
+                return components;
+            }
+        }
+        return Collections.emptyList();
+    }
 
-        Object revision = revisions.get("revision");
-        if (revision == null) {
-            LOGGER.warn("No revision detected for build " + buildID);
-            return null;
+    private static List<TeamcityBuildRecord> withinHorizon(List<TeamcityBuildRecord> builds, long horizon) {
+        if (horizon <= 0) {
+            return builds;
         }
-        JSONArray theRevisions = (JSONArray) revision;
-        if (theRevisions.size() < 1) {
-            LOGGER.warn("No revision detected for build " + buildID);
-            return null;
+        List<TeamcityBuildRecord> recentBuilds = new ArrayList<>();
+        for (TeamcityBuildRecord build : builds) {
+            if (build.getTriggeredDate() > 0 && build.getTriggeredDate() < horizon) {
+                break;
+            }
+            recentBuilds.add(build);
         }
-        if (theRevisions.size() > 1) {
-            LOGGER.warn("Multiple revisions detected for build " + buildID + ", considering the first");
+        return recentBuilds;
+    }
+
+    /**
+     * Merges the deployed commits into the pipelines, on the slower latest only schedule for latest only applications.
+     */
+    private void processPipelineCommits(TeamcityApplication application, Environment environment,
+                                        Map<String, PipelineCommit> pipelineCommits) {
+        List<PipelineCommit> commits = new ArrayList<>(pipelineCommits.values());
+        if (settings.isLatestOnly(application.getApplicationId())) {
+            pipelineCommitProcessor.deferPipelineCommits(commits, application, environment.getName());
+        } else {
+            pipelineCommitProcessor.processPipelineCommits(commits, application, environment.getName());
         }
-        String commitId = (String) ((JSONObject)theRevisions.get(0)).get("version");
-        List<Commit> matchedCommits = commitRepository.findByScmRevisionNumber(commitId);
-        Commit newCommit = null;
-        if (matchedCommits != null && matchedCommits.size() > 0) {
-            newCommit = matchedCommits.get(0);
+    }
+
+
+    /**
+     * Fetches one page of builds along with the details needed to build deployment data.
+     * When the server understands a nested {@code fields} spec the whole page is a single request,
+     * otherwise (older servers) every build on the page is fetched individually.
+     * Builds already in the {@link FinishedBuildCache} are not fetched again.
+     */
+    private List<TeamcityBuildRecord> getBuilds(String instanceUrl, String allBuildsUrl, String pageUrl) {
+        List<TeamcityBuildRecord> builds = new ArrayList<>();
+        if (settings.isBuildFieldsProjection() && !fieldsProjectionUnsupported.contains(instanceUrl)) {
+            try {
+                Set<String> cachedIds = new HashSet<>();
+                List<TeamcityBuildRecord> page = makeRestCall(pageUrl + "&fields=" + BUILD_LIST_FIELDS,
+                        response -> TeamcityBuildReader.readBuilds(response.getBody(), id -> {
+                            TeamcityBuildRecord cached = cachedBuild(instanceUrl, id);
+                            if (cached != null) {
+                                cachedIds.add(id);
+                            }
+                            return cached;
+                        }));
+                TeamcityBuildRecord firstRead = page.stream().filter(build -> !cachedIds.contains(build.getBuildId()))
+                        .findFirst().orElse(null);
+                if (firstRead == null || firstRead.getTriggeredDate() > 0) {
+                    for (TeamcityBuildRecord build : page) {
+                        if (!cachedIds.contains(build.getBuildId()) && build.isFinished()) {
+                            finishedBuildCache.put(instanceUrl, build);
+                        }
+                        builds.add(build);
+                    }
+                    return builds;
+                }
+                LOGGER.warn("{} ignored the builds fields spec, falling back to per build details", instanceUrl);
+            } catch (HttpClientErrorException hce) {
+                if (hce.getStatusCode() != HttpStatus.BAD_REQUEST) {
+                    throw hce;
+                }
+                LOGGER.warn("{} rejected the builds fields spec, falling back to per build details", instanceUrl);
+            }
+            fieldsProjectionUnsupported.add(instanceUrl);
         }
-        if (newCommit == null) {
-            return null;
+
+        for (TeamcityBuildRecord listed : makeRestCall(pageUrl, response -> TeamcityBuildReader.readBuilds(response.getBody()))) {
+            TeamcityBuildRecord record = finishedBuildCache.get(instanceUrl, listed.getBuildId());
+            if (record != null && record.getBuildTypeId() == null) {
+                record.setBuildTypeId(listed.getBuildTypeId());
+                finishedBuildCache.put(instanceUrl, record);
+            }
+            if (record == null) {
+                String buildURL = String.format("%s/id:%s", allBuildsUrl, listed.getBuildId());
+                record = makeRestCall(buildURL, response -> TeamcityBuildReader.readBuild(response.getBody()));
+                if (record == null || record.getBuildId() == null) {
+                    LOGGER.warn("No build details returned for {}", buildURL);
+                    continue;
+                }
+                if (record.isFinished()) {
+                    finishedBuildCache.put(instanceUrl, record);
+                }
+            }
+            builds.add(record);
         }
-        return new PipelineCommit(newCommit, timestamp);
+        return builds;
     }
 
-    private long getTimeInMillis(String startDate) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
-        String dateWithoutOffset = startDate.substring(0, 15);
-        String offset = startDate.substring(15);
-        LocalDateTime formattedDateTime = LocalDateTime.parse(dateWithoutOffset, formatter);
-        String formattedOffset = offset.substring(0, 3) + ":" + offset.substring(3);
-        ZoneOffset zoneOffset = ZoneOffset.of(formattedOffset);
-        return formattedDateTime.atOffset(zoneOffset).toEpochSecond() * 1000;
+    @Override
+    public TeamcityBuildRecord getBuild(String instanceUrl, String buildId) {
+        TeamcityBuildRecord record = finishedBuildCache.get(instanceUrl, buildId);
+        if (record == null) {
+            String buildURL = joinURL(instanceUrl, new String[]{String.format("%s/id:%s", BUILD_DETAILS_URL_SUFFIX, buildId)});
+            record = makeRestCall(buildURL, response -> TeamcityBuildReader.readBuild(response.getBody()));
+            if (record == null || record.getBuildId() == null) {
+                LOGGER.warn("No build details returned for {}", buildURL);
+                return null;
+            }
+            // A notification may arrive before the build finished, its status can still change then
+            if (!record.isFinished()) {
+                LOGGER.warn("Build {} is {}, not finished, leaving it to the next collection", buildId, record.getState());
+                return null;
+            }
+            finishedBuildCache.put(instanceUrl, record);
+        }
+        return record;
+    }
+
+    /**
+     * @return the cached copy of a listed build, or null to read the build from the listing
+     */
+    private TeamcityBuildRecord cachedBuild(String instanceUrl, String buildId) {
+        TeamcityBuildRecord cached = finishedBuildCache.get(instanceUrl, buildId);
+        // Builds cached by earlier versions lack the build type id, they are read again
+        return cached == null || cached.getBuildTypeId() == null ? null : cached;
     }
 
     private boolean isDeployed(String deployStatus) {
-        //Skip deployments that are simply "created" or "cancelled".
-        //Created deployments are never triggered. So there is no point in considering them
+        // Only successful builds are deployments, like the status:SUCCESS locator asks Teamcity for
         return deployStatus != null && !deployStatus.isEmpty() && deployStatus.equalsIgnoreCase("success");
     }
 
@@ -336,22 +578,47 @@ public class DefaultTeamcityClient implements TeamcityClient {
     @Override
     public List<TeamcityEnvResCompData> getEnvironmentResourceStatusData(
             TeamcityApplication application, Environment environment) {
+        return getEnvironmentResourceStatusData(application, environment, null);
+    }
+
+    @Override
+    public List<TeamcityEnvResCompData> getEnvironmentResourceStatusData(
+            TeamcityApplication application, Environment environment, TeamcityBuildWatermark watermark) {
         List<TeamcityEnvResCompData> allComponents = new ArrayList<>();
-        int startCount = 0;
-        int buildsCount = 100;
+        Map<String, PipelineCommit> pipelineCommits = new HashMap<>();
+        boolean latestOnly = settings.isLatestOnly(application.getApplicationId());
+        long horizon = settings.getLookbackHorizon(application.getApplicationId());
+        long untilBuildId = 0;
+        // The newest build may still not count as a deployment, e.g. of an ignored pipeline, latest only takes
+        // the first build on a page that does
+        int buildsCount = latestOnly ? LATEST_ONLY_PAGE_SIZE : 100;
+        // Failures propagate, a partial history must neither replace the stored data nor move the watermark
         while (true) {
-            List<TeamcityEnvResCompData> components = null;
-            try {
-                components = getBuildDetailsForTeamcityProjectPaginated(application, environment, startCount, buildsCount);
-            } catch (ParseException e) {
-                e.printStackTrace();
+            List<TeamcityBuildRecord> builds = getBuildDetailsForTeamcityProjectPaginated(
+                    application, environment, watermark, horizon, untilBuildId, buildsCount);
+            // Stop on the first empty page, not on the first page without deployments
+            if (builds.isEmpty()) {
+                break;
+            }
+            untilBuildId = lastBuildId(builds);
+            // Builds are listed newest first, servers that ignore sinceDate are cut off at the first older build
+            List<TeamcityBuildRecord> recentBuilds = withinHorizon(builds, horizon);
+            boolean horizonReached = recentBuilds.size() < builds.size();
+            builds = recentBuilds;
+            if (!latestOnly) {
+                allComponents.addAll(toEnvironmentData(application, environment, builds, pipelineCommits));
+            } else {
+                allComponents.addAll(latestDeployment(application, environment, builds, pipelineCommits));
+                if (!allComponents.isEmpty()) {
+                    break;
+                }
             }
-            if (Objects.requireNonNull(components).isEmpty()) {
+            if (horizonReached) {
                 break;
             }
-            allComponents.addAll(components);
-            startCount += 100;
         }
+        // The commits of every page are merged into the pipelines in one go
+        processPipelineCommits(application, environment, pipelineCommits);
         return allComponents;
     }
 
@@ -359,11 +626,66 @@ public class DefaultTeamcityClient implements TeamcityClient {
     protected ResponseEntity<String> makeRestCall(String sUrl) {
         LOGGER.debug("Enter makeRestCall " + sUrl);
         List<String> apiKeys = settings.getApiKeys();
-        if (apiKeys.isEmpty()) {
-            return rest.exchange(sUrl, HttpMethod.GET, null, String.class);
-        } else {
-            //TODO apiKeys need not be an array
-            return rest.exchange(sUrl, HttpMethod.GET, new HttpEntity<>(createAuthzHeader(apiKeys.get(0))), String.class);
+        Semaphore permits = acquireServerPermit(sUrl);
+        try {
+            if (apiKeys.isEmpty()) {
+                return rest.exchange(sUrl, HttpMethod.GET, null, String.class);
+            } else {
+                return rest.exchange(sUrl, HttpMethod.GET, new HttpEntity<>(createAuthzHeader(apiKeys.get(0))), String.class);
+            }
+        } finally {
+            releaseServerPermit(permits);
+        }
+    }
+
+    /**
+     * Streams the response body of a GET into {@code extractor} instead of buffering it as a String.
+     * Malformed bodies surface as {@link HttpMessageNotReadableException}. {@code sUrl} is sent as given,
+     * so it has to be encoded already.
+     */
+    protected <T> T makeRestCall(String sUrl, ResponseExtractor<T> extractor) {
+        LOGGER.debug("Enter makeRestCall " + sUrl);
+        List<String> apiKeys = settings.getApiKeys();
+        RequestCallback requestCallback = request -> {
+            request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+            if (!apiKeys.isEmpty()) {
+                request.getHeaders().putAll(createAuthzHeader(apiKeys.get(0)));
+            }
+        };
+        Semaphore permits = acquireServerPermit(sUrl);
+        try {
+            return rest.execute(UriComponentsBuilder.fromHttpUrl(sUrl).build(true).toUri(), HttpMethod.GET, requestCallback, response -> {
+                try {
+                    return extractor.extractData(response);
+                } catch (JsonProcessingException e) {
+                    throw new HttpMessageNotReadableException("Could not read Teamcity response from " + sUrl, e);
+                }
+            });
+        } finally {
+            releaseServerPermit(permits);
+        }
+    }
+
+    /**
+     * Blocks until the server of {@code sUrl} has a free request permit.
+     *
+     * @return the permits to release afterwards, null when requests are not limited
+     */
+    private Semaphore acquireServerPermit(String sUrl) {
+        int limit = settings.getMaxRequestsPerServer();
+        if (limit <= 0) {
+            return null;
+        }
+        int hostEnd = sUrl.indexOf('/', sUrl.indexOf("//") + 2);
+        String server = hostEnd < 0 ? sUrl : sUrl.substring(0, hostEnd);
+        Semaphore permits = serverPermits.computeIfAbsent(server, key -> new Semaphore(limit));
+        permits.acquireUninterruptibly();
+        return permits;
+    }
+
+    private static void releaseServerPermit(Semaphore permits) {
+        if (permits != null) {
+            permits.release();
         }
     }
 
@@ -375,6 +697,37 @@ public class DefaultTeamcityClient implements TeamcityClient {
         return headers;
     }
 
+    private String buildTypeUrl(String instanceUrl, String buildTypeID) {
+        return joinURL(instanceUrl, new String[]{String.format("%s/id:%s", BUILD_TYPE_DETAILS_URL_SUFFIX, buildTypeID)});
+    }
+
+    /**
+     * Fetches project and build type details at most once per discovery.
+     *
+     * @throws HttpMessageNotReadableException if the response is not JSON
+     */
+    private JSONObject getCachedJson(Map<String, JSONObject> responses, String url) {
+        JSONObject cached = responses.get(url);
+        if (cached == null) {
+            LOGGER.info("Fetching details for {}", url);
+            try {
+                cached = parseJson(makeRestCall(url));
+            } catch (ParseException e) {
+                throw new HttpMessageNotReadableException("Could not read Teamcity response from " + url, e);
+            }
+            responses.put(url, cached);
+        }
+        return cached;
+    }
+
+    private JSONObject parseJson(ResponseEntity<String> responseEntity) throws ParseException {
+        String returnJSON = responseEntity == null ? null : responseEntity.getBody();
+        if (StringUtils.isEmpty(returnJSON)) {
+            return new JSONObject();
+        }
+        return (JSONObject) new JSONParser().parse(returnJSON);
+    }
+
     private JSONArray getJsonArray(JSONObject json, String key) {
         Object array = json.get(key);
         return array == null ? new JSONArray() : (JSONArray) array;
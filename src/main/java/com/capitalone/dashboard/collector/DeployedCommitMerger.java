@@ -0,0 +1,107 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.PipelineCommit;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out the commits deployed to an environment stage. The commit stage of each pipeline is sorted
+ * once per collection cycle and kept until {@link #clear()}.
+ */
+final class DeployedCommitMerger {
+    private static final Comparator<PipelineCommit> NEWEST_COMMIT_FIRST =
+            Comparator.comparingLong(PipelineCommit::getScmCommitTimestamp).reversed();
+    private static final Comparator<PipelineCommit> NEWEST_DEPLOYMENT_FIRST =
+            Comparator.comparingLong(PipelineCommit::getTimestamp).reversed();
+
+    // collector item id -> commit stage sorted newest commit first
+    private final Map<ObjectId, List<PipelineCommit>> sortedCommitStages = new HashMap<>();
+
+    /**
+     * @return the sorted commit stage of a collector item's pipeline, null if it is not known in this cycle
+     */
+    List<PipelineCommit> getCommitStage(ObjectId collectorItemId) {
+        return sortedCommitStages.get(collectorItemId);
+    }
+
+    /**
+     * Sorts and remembers the commit stage of a collector item's pipeline.
+     *
+     * @return the sorted commit stage
+     */
+    List<PipelineCommit> putCommitStage(ObjectId collectorItemId, Collection<PipelineCommit> commitStage) {
+        List<PipelineCommit> sorted = new ArrayList<>(commitStage);
+        sorted.sort(NEWEST_COMMIT_FIRST);
+        sortedCommitStages.put(collectorItemId, sorted);
+        return sorted;
+    }
+
+    void evict(ObjectId collectorItemId) {
+        sortedCommitStages.remove(collectorItemId);
+    }
+
+    void clear() {
+        sortedCommitStages.clear();
+    }
+
+    /**
+     * Walks the commit stage from the newest commit down. Everything from the newest deployed commit onwards
+     * counts as deployed, and commits that were not deployed themselves take the time of the closest newer
+     * deployed commit.
+     *
+     * @param sortedCommitStage commit stage sorted newest commit first, see {@link #putCommitStage}
+     * @param existing          commits already in the environment stage, these win over {@code deployed}
+     * @param deployed          commits of the deployments just collected
+     * @return the deployed commits, newest deployment first
+     */
+    static Set<PipelineCommit> merge(List<PipelineCommit> sortedCommitStage, Collection<PipelineCommit> existing,
+                                     Collection<PipelineCommit> deployed) {
+        Map<String, PipelineCommit> deployedBySha = new HashMap<>((existing.size() + deployed.size()) * 4 / 3 + 1);
+        for (PipelineCommit commit : existing) {
+            deployedBySha.putIfAbsent(commit.getScmRevisionNumber(), commit);
+        }
+        for (PipelineCommit commit : deployed) {
+            deployedBySha.putIfAbsent(commit.getScmRevisionNumber(), commit);
+        }
+
+        List<PipelineCommit> result = new ArrayList<>(sortedCommitStage.size());
+        long timestamp = 0;
+        boolean ordered = true;
+        for (PipelineCommit commit : sortedCommitStage) {
+            PipelineCommit deployedCommit = deployedBySha.get(commit.getScmRevisionNumber());
+            if (deployedCommit != null) {
+                ordered &= result.isEmpty() || deployedCommit.getTimestamp() <= result.get(result.size() - 1).getTimestamp();
+                timestamp = deployedCommit.getTimestamp();
+                result.add(deployedCommit);
+            } else if (timestamp != 0) {
+                result.add(copy(commit, timestamp));
+            }
+        }
+        // Newer commits are normally deployed later, so the result rarely needs sorting
+        if (!ordered) {
+            result.sort(NEWEST_DEPLOYMENT_FIRST);
+        }
+        return new LinkedHashSet<>(result);
+    }
+
+    /**
+     * Copies a commit of the commit stage for an environment stage. The SCM copy constructor leaves out a
+     * few fields, those are copied here.
+     */
+    static PipelineCommit copy(PipelineCommit commit, long timestamp) {
+        PipelineCommit copy = new PipelineCommit(commit, timestamp);
+        copy.setScmAuthorLDAPDN(commit.getScmAuthorLDAPDN());
+        copy.setScmCommitter(commit.getScmCommitter());
+        copy.setScmCommitterLogin(commit.getScmCommitterLogin());
+        copy.setPullNumber(commit.getPullNumber());
+        return copy;
+    }
+}
@@ -0,0 +1,92 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.BaseModel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Minimal set of writes that turns the stored documents into the freshly collected ones.
+ * Documents are matched on a key, so the comparison is linear in the number of documents.
+ *
+ * @param <T> document type
+ */
+final class DocumentDiff<T extends BaseModel> {
+    private final List<T> inserts = new ArrayList<>();
+    private final List<T> updates = new ArrayList<>();
+    private final List<T> deletes = new ArrayList<>();
+
+    private DocumentDiff() {
+    }
+
+    /**
+     * @param existing the stored documents
+     * @param proposed the collected documents, the last one wins when several share a key
+     * @param key      identity of a document
+     * @param changed  whether a proposed document differs from the stored one with the same key
+     * @param retained stored documents that are kept even though they were not collected again
+     */
+    static <T extends BaseModel> DocumentDiff<T> compute(Collection<T> existing, Collection<T> proposed,
+                                                         Function<T, String> key, BiPredicate<T, T> changed,
+                                                         Predicate<T> retained) {
+        DocumentDiff<T> diff = new DocumentDiff<>();
+        Map<String, T> existingByKey = new HashMap<>();
+        for (T document : existing) {
+            if (existingByKey.putIfAbsent(key.apply(document), document) != null) {
+                // duplicates left behind by earlier runs
+                diff.deletes.add(document);
+            }
+        }
+        Map<String, T> proposedByKey = new LinkedHashMap<>();
+        for (T document : proposed) {
+            proposedByKey.put(key.apply(document), document);
+        }
+        for (Map.Entry<String, T> entry : proposedByKey.entrySet()) {
+            T document = entry.getValue();
+            T stored = existingByKey.remove(entry.getKey());
+            if (stored == null) {
+                diff.inserts.add(document);
+            } else if (changed.test(document, stored)) {
+                document.setId(stored.getId());
+                diff.updates.add(document);
+            }
+        }
+        for (T stored : existingByKey.values()) {
+            if (!retained.test(stored)) {
+                diff.deletes.add(stored);
+            }
+        }
+        return diff;
+    }
+
+    List<T> getInserts() {
+        return inserts;
+    }
+
+    /**
+     * Collected documents that replace a stored one, they carry the id of the stored document.
+     */
+    List<T> getUpdates() {
+        return updates;
+    }
+
+    List<T> getDeletes() {
+        return deletes;
+    }
+
+    boolean isEmpty() {
+        return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "inserted " + inserts.size() + ", updated " + updates.size() + ", deleted " + deletes.size();
+    }
+}
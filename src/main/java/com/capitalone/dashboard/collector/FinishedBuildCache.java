@@ -0,0 +1,114 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.TeamcityBuildRecord;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded LRU cache of finished Teamcity builds, keyed by instance URL and build id.
+ * A finished build never changes, so a cached build is never fetched or parsed again.
+ * When {@code teamcity.buildCacheFile} is set, the cache is written to it after collection cycles
+ * that added builds and read back on startup. It is written to a temporary file first and moved
+ * over the previous one, so a crash never leaves a truncated cache behind.
+ */
+@Component
+public class FinishedBuildCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FinishedBuildCache.class);
+
+    private static final Type ENTRIES_TYPE = new TypeToken<LinkedHashMap<String, TeamcityBuildRecord>>() {
+    }.getType();
+
+    private final TeamcitySettings settings;
+    private final Map<String, TeamcityBuildRecord> builds;
+    private boolean dirty;
+
+    @Autowired
+    public FinishedBuildCache(TeamcitySettings settings) {
+        this.settings = settings;
+        this.builds = new LinkedHashMap<String, TeamcityBuildRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TeamcityBuildRecord> eldest) {
+                return size() > settings.getBuildCacheSize();
+            }
+        };
+    }
+
+    @PostConstruct
+    public synchronized void load() {
+        if (!isEnabled() || StringUtils.isEmpty(settings.getBuildCacheFile())) {
+            return;
+        }
+        Path file = Paths.get(settings.getBuildCacheFile());
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Map<String, TeamcityBuildRecord> stored = new Gson().fromJson(reader, ENTRIES_TYPE);
+            if (stored != null) {
+                builds.putAll(stored);
+            }
+            LOGGER.info("Loaded {} finished builds from {}", builds.size(), file);
+        } catch (IOException | JsonParseException e) {
+            LOGGER.warn("Ignoring unreadable build cache " + file, e);
+        }
+    }
+
+    public synchronized TeamcityBuildRecord get(String instanceUrl, String buildId) {
+        return builds.get(key(instanceUrl, buildId));
+    }
+
+    public synchronized void put(String instanceUrl, TeamcityBuildRecord build) {
+        if (!isEnabled()) {
+            return;
+        }
+        builds.put(key(instanceUrl, build.getBuildId()), build);
+        dirty = true;
+    }
+
+    /**
+     * Writes the cache to disk if anything was added since the last flush.
+     */
+    public synchronized void flush() {
+        if (!dirty || StringUtils.isEmpty(settings.getBuildCacheFile())) {
+            return;
+        }
+        Path file = Paths.get(settings.getBuildCacheFile()).toAbsolutePath();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                new Gson().toJson(builds, ENTRIES_TYPE, writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.warn("Could not write build cache " + file, e);
+        }
+    }
+
+    private boolean isEnabled() {
+        return settings.getBuildCacheSize() > 0;
+    }
+
+    private static String key(String instanceUrl, String buildId) {
+        return instanceUrl + '|' + buildId;
+    }
+}
@@ -0,0 +1,116 @@
+package com.capitalone.dashboard.collector;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection pool that applies the per server connection limits from {@link TeamcitySettings}
+ * and records how long requests wait to lease a connection.
+ */
+class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+    private final TeamcitySettings settings;
+    private final Map<HttpRoute, Boolean> configuredRoutes = new ConcurrentHashMap<>();
+
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder leaseTimeouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    InstrumentedConnectionManager(Registry<ConnectionSocketFactory> registry, TeamcitySettings settings) {
+        super(registry);
+        this.settings = settings;
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        configuredRoutes.computeIfAbsent(route, this::applyServerLimit);
+        ConnectionRequest request = super.requestConnection(route, state);
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit tunit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                try {
+                    HttpClientConnection connection = request.get(timeout, tunit);
+                    leases.increment();
+                    return connection;
+                } catch (ConnectionPoolTimeoutException e) {
+                    leaseTimeouts.increment();
+                    throw e;
+                } finally {
+                    long waited = System.nanoTime() - start;
+                    waitNanos.add(waited);
+                    maxWaitNanos.accumulateAndGet(waited, Math::max);
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    /**
+     * Returns a summary of the pool and its lease statistics and resets the statistics.
+     */
+    String drainStats() {
+        long count = leases.sumThenReset();
+        long timeouts = leaseTimeouts.sumThenReset();
+        long waited = waitNanos.sumThenReset();
+        long maxWaited = maxWaitNanos.getAndSet(0);
+        StringBuilder sb = new StringBuilder()
+                .append("leases=").append(count)
+                .append(" timeouts=").append(timeouts)
+                .append(" avgWaitMs=").append(count + timeouts == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waited / (count + timeouts)))
+                .append(" maxWaitMs=").append(TimeUnit.NANOSECONDS.toMillis(maxWaited))
+                .append(" total=").append(format(getTotalStats()));
+        for (HttpRoute route : getRoutes()) {
+            sb.append(' ').append(route.getTargetHost().toHostString()).append('=').append(format(getStats(route)));
+        }
+        return sb.toString();
+    }
+
+    private Boolean applyServerLimit(HttpRoute route) {
+        List<String> servers = settings.getServers();
+        List<Integer> limits = settings.getServerMaxConnections();
+        for (int i = 0; i < servers.size() && i < limits.size(); i++) {
+            Integer limit = limits.get(i);
+            if (limit != null && limit > 0 && route.getTargetHost().equals(toHost(servers.get(i)))) {
+                setMaxPerRoute(route, limit);
+                break;
+            }
+        }
+        return Boolean.TRUE;
+    }
+
+    private static HttpHost toHost(String server) {
+        URI uri = URI.create(server);
+        int port = uri.getPort();
+        if (port < 0) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        return new HttpHost(uri.getHost(), port, uri.getScheme());
+    }
+
+    private static String format(PoolStats stats) {
+        return String.format("[leased:%d pending:%d available:%d max:%d]",
+                stats.getLeased(), stats.getPending(), stats.getAvailable(), stats.getMax());
+    }
+}
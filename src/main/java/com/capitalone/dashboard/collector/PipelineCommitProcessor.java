@@ -1,134 +1,199 @@
 package com.capitalone.dashboard.collector;
 
 import com.capitalone.dashboard.model.*;
-import com.capitalone.dashboard.repository.*;
-import com.google.gson.Gson;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
+
+import javax.annotation.PreDestroy;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 @org.springframework.stereotype.Component
 public class PipelineCommitProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(PipelineCommitProcessor.class);
 
-    private final CollectorRepository collectorRepository;
-    private final CollectorItemRepository collectorItemRepository;
-    private final PipelineRepository pipelineRepository;
-    private final ComponentRepository componentRepository;
-    private final DashboardRepository dashboardRepository;
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final PipelineStageStore pipelineStageStore;
+    private final DashboardResolver dashboardResolver;
+    private final TeamcitySettings settings;
+    private final DeployedCommitMerger commitMerger = new DeployedCommitMerger();
+    // collectorItemId|environment -> commits waiting to be merged, see deferPipelineCommits
+    private final Map<String, DeferredCommits> deferredCommits = new HashMap<>();
 
     @Autowired
-    public PipelineCommitProcessor(CollectorRepository collectorRepository,
-                                   @Qualifier("collectorItemRepository") CollectorItemRepository collectorItemRepository,
-                                   PipelineRepository pipelineRepository,
-                                   ComponentRepository componentRepository,
-                                   DashboardRepository dashboardRepository) {
-        this.collectorRepository = collectorRepository;
-        this.collectorItemRepository = collectorItemRepository;
-        this.pipelineRepository = pipelineRepository;
-        this.componentRepository = componentRepository;
-        this.dashboardRepository = dashboardRepository;
+    public PipelineCommitProcessor(PipelineStageStore pipelineStageStore,
+                                   DashboardResolver dashboardResolver,
+                                   TeamcitySettings settings) {
+        this.pipelineStageStore = pipelineStageStore;
+        this.dashboardResolver = dashboardResolver;
+        this.settings = settings;
     }
 
-    private List<Dashboard> findAllDashboardsForCollectorId(ObjectId collectorId, String applicationId) {
-        List<CollectorItem> collectorItems = collectorItemRepository.findByCollectorIdIn(Collections.singletonList(collectorId));
-        if (collectorItems == null || collectorItems.size() == 0) {
-            return Collections.emptyList();
-        }
-
-        Optional<CollectorItem> collectorItemOptional =
-                collectorItems.stream().filter(item ->
-                        applicationId.equals(item.getOptions().get("applicationId"))).findFirst();
-        if (!collectorItemOptional.isPresent()) {
-            return Collections.emptyList();
-        }
-        CollectorItem collectorItem = collectorItemOptional.get();
-        List<Component> components = componentRepository
-                .findByDeployCollectorItemId(collectorItem.getId());
-        List<ObjectId> componentIds = components.stream().map(BaseModel::getId).collect(Collectors.toList());
-        return dashboardRepository.findByApplicationComponentIdsIn(componentIds);
+    /**
+     * Forgets the dashboards and sorted commit stages of the collection cycle.
+     */
+    public synchronized void clearCache() {
+        dashboardResolver.clear();
+        commitMerger.clear();
     }
 
-    public void processPipelineCommits(List<PipelineCommit> commitsOfDeploymentStage, TeamcityApplication application) {
-        if (commitsOfDeploymentStage.size() <= 0) {
+    /**
+     * Merges commits into the pipelines at most once per {@code teamcity.latestOnlyPipelineIntervalMinutes}
+     * for each environment. Commits deployed in between wait in memory and are merged together, each
+     * keeping its earliest deployment. Commits still waiting when the collector stops are merged then.
+     */
+    public synchronized void deferPipelineCommits(List<PipelineCommit> commitsOfDeploymentStage, TeamcityApplication application,
+                                                  String environmentName) {
+        long interval = TimeUnit.MINUTES.toMillis(settings.getLatestOnlyPipelineIntervalMinutes());
+        if (interval <= 0) {
+            processPipelineCommits(commitsOfDeploymentStage, application, environmentName);
             return;
         }
-        List<Dashboard> allDashboardsForCommit = findAllDashboardsForCollectorId(application.getCollectorId(), application.getApplicationId());
-        List<String> dashBoardIds = allDashboardsForCommit.stream().map(d -> d.getId().toString()).collect(Collectors.toList());
-
-        List<Collector> collectorList = collectorRepository.findByCollectorType(CollectorType.Product);
-        List<CollectorItem> collectorItemList = collectorItemRepository.findByCollectorIdIn(collectorList.stream().map(BaseModel::getId).collect(Collectors.toList()));
+        DeferredCommits deferred = deferredCommits.computeIfAbsent(application.getId() + "|" + environmentName,
+                key -> new DeferredCommits(application, environmentName));
+        for (PipelineCommit commit : commitsOfDeploymentStage) {
+            deferred.commits.merge(commit.getScmRevisionNumber().toLowerCase(Locale.ROOT), commit,
+                    (existing, incoming) -> incoming.getTimestamp() < existing.getTimestamp() ? incoming : existing);
+        }
+        mergeIfDue(deferred, interval);
+    }
 
-        for (CollectorItem collectorItem : collectorItemList) {
-            boolean dashboardId = dashBoardIds.contains(collectorItem.getOptions().get("dashboardId").toString());
-            if (!dashboardId) {
+    /**
+     * Merges the deferred commits whose interval has passed, including those of environments without
+     * new deployments since. Environments that were merged and whose interval has passed are forgotten,
+     * as are those of applications no longer enabled or no longer latest only.
+     *
+     * @param enabledApplicationIds ids of the collector's enabled applications
+     */
+    public synchronized void mergeDeferredPipelineCommits(Set<ObjectId> enabledApplicationIds) {
+        long interval = TimeUnit.MINUTES.toMillis(settings.getLatestOnlyPipelineIntervalMinutes());
+        Iterator<DeferredCommits> iterator = deferredCommits.values().iterator();
+        while (iterator.hasNext()) {
+            DeferredCommits deferred = iterator.next();
+            if (!enabledApplicationIds.contains(deferred.application.getId())
+                    || !settings.isLatestOnly(deferred.application.getApplicationId())) {
+                iterator.remove();
                 continue;
             }
-            Pipeline pipeline = getOrCreatePipeline(collectorItem);
-            Map<String, EnvironmentStage> environmentStageMap = pipeline.getEnvironmentStageMap();
-            EnvironmentStage commitStage = environmentStageMap.get(PipelineStage.COMMIT.getName());
-            if (commitStage == null || commitStage.getCommits() == null || commitStage.getCommits().isEmpty()) {
-                LOG.error("Cannot populate pipeline commits for build since no pipeline commits for Commit stage found");
-                LOG.error("Maybe the SCM collector has not been run?");
-                continue;
+            mergeIfDue(deferred, interval);
+            // An environment deferring again after its interval merges right away, with or without an entry
+            if (deferred.commits.isEmpty() && System.currentTimeMillis() - deferred.lastMerged >= interval) {
+                iterator.remove();
             }
-            List<PipelineCommit> pipelineCommitsOfCommitsStage = new ArrayList<>(commitStage.getCommits());
-            pipelineCommitsOfCommitsStage.sort(Comparator.comparing(PipelineCommit::getScmCommitTimestamp).reversed());
+        }
+    }
 
-            if (environmentStageMap.get(application.getEnvironment()) == null) {
-                environmentStageMap.put(application.getEnvironment(), new EnvironmentStage());
+    /**
+     * Merges every deferred commit whatever its interval, they only live in memory and would be lost
+     * with the collector.
+     */
+    @PreDestroy
+    public synchronized void flushDeferredPipelineCommits() {
+        for (DeferredCommits deferred : deferredCommits.values()) {
+            if (!deferred.commits.isEmpty()) {
+                processPipelineCommits(new ArrayList<>(deferred.commits.values()), deferred.application,
+                        deferred.environmentName);
             }
+        }
+        deferredCommits.clear();
+    }
 
-            EnvironmentStage environmentStage = environmentStageMap.get(application.getEnvironment());
-            if (environmentStage.getCommits() == null) {
-                environmentStage.setCommits(new HashSet<>());
-            }
+    private void mergeIfDue(DeferredCommits deferred, long interval) {
+        long now = System.currentTimeMillis();
+        if (deferred.commits.isEmpty() || now - deferred.lastMerged < interval) {
+            return;
+        }
+        processPipelineCommits(new ArrayList<>(deferred.commits.values()), deferred.application, deferred.environmentName);
+        deferred.commits.clear();
+        deferred.lastMerged = now;
+    }
 
-            Set<PipelineCommit> deploymentStageCommits = new HashSet<>();
-            //Add all existing commits and incoming commits, removing duplicates
-            deploymentStageCommits.addAll(environmentStage.getCommits());
-            deploymentStageCommits.addAll(commitsOfDeploymentStage);
-            Map<String, PipelineCommit> deployedCommitsBySha = deploymentStageCommits.stream()
-                    .collect(Collectors.toMap(SCM::getScmRevisionNumber, x -> x));
-
-
-            List<PipelineCommit> finalSetOfDeployedCommits = new ArrayList<>();
-            long timestamp = 0;
-            for (PipelineCommit commit :
-                    pipelineCommitsOfCommitsStage) {
-                if (deployedCommitsBySha.containsKey(commit.getScmRevisionNumber())) {
-                    PipelineCommit builtPipelineCommit = deployedCommitsBySha.get(commit.getScmRevisionNumber());
-                    finalSetOfDeployedCommits.add(builtPipelineCommit);
-                    timestamp = builtPipelineCommit.getTimestamp();
-                } else {
-                    if (timestamp == 0) {
-                        //Skip these commits because they may not have been deployed to the environment
-                        continue;
+    /**
+     * Writes are optimistic, see {@link PipelineStageStore}, and retried when another writer changed the pipeline
+     * in between. Synchronized so the collector's own threads do not keep invalidating each other's writes.
+     */
+    public synchronized void processPipelineCommits(List<PipelineCommit> commitsOfDeploymentStage, TeamcityApplication application,
+                                                    String environmentName) {
+        if (commitsOfDeploymentStage.size() <= 0) {
+            return;
+        }
+        List<CollectorItem> collectorItemList = new ArrayList<>();
+        for (String dashboardId : dashboardResolver.getDashboardIds(application.getCollectorId(), application.getApplicationId())) {
+            collectorItemList.addAll(dashboardResolver.getProductItems(dashboardId));
+        }
+
+        for (CollectorItem collectorItem : collectorItemList) {
+            for (int attempt = 1; attempt <= MAX_WRITE_ATTEMPTS; attempt++) {
+                // The commit stage is only read and sorted the first time a pipeline is seen in a cycle
+                List<PipelineCommit> commitStage = commitMerger.getCommitStage(collectorItem.getId());
+                PipelineStageStore.Snapshot snapshot = pipelineStageStore.read(collectorItem.getId(), environmentName,
+                        commitStage == null);
+                if (snapshot != null && commitStage == null) {
+                    EnvironmentStage stage = snapshot.getPipeline().getEnvironmentStageMap().get(PipelineStage.COMMIT.getName());
+                    if (stage != null && stage.getCommits() != null && !stage.getCommits().isEmpty()) {
+                        commitStage = commitMerger.putCommitStage(collectorItem.getId(), stage.getCommits());
                     }
-                    Gson gson = new Gson();
-                    PipelineCommit pipelineCommit = gson.fromJson(gson.toJson(commit), PipelineCommit.class);
-                    pipelineCommit.setTimestamp(timestamp);
-                    finalSetOfDeployedCommits.add(pipelineCommit);
                 }
+                if (snapshot == null || commitStage == null) {
+                    LOG.error("Cannot populate pipeline commits for build since no pipeline commits for Commit stage found");
+                    LOG.error("Maybe the SCM collector has not been run?");
+                    break;
+                }
+                EnvironmentStage environmentStage = snapshot.getPipeline().getEnvironmentStageMap().get(environmentName);
+                Set<PipelineCommit> deployedCommits = DeployedCommitMerger.merge(commitStage,
+                        environmentStage == null || environmentStage.getCommits() == null
+                                ? Collections.emptySet() : environmentStage.getCommits(),
+                        commitsOfDeploymentStage);
+                if (environmentStage != null && sameCommits(environmentStage.getCommits(), deployedCommits)) {
+                    // Builds read again within the watermark overlap change nothing
+                    break;
+                }
+                LOG.info("Added {} pipeline commits to environment stage {}", deployedCommits.size(),
+                        environmentName);
+                if (pipelineStageStore.writeCommits(snapshot, environmentName, deployedCommits)) {
+                    break;
+                }
+                // The commit stage may have changed as well
+                commitMerger.evict(collectorItem.getId());
+                LOG.info("Pipeline {} was changed by another writer, attempt {} of {}",
+                        snapshot.getPipeline().getId(), attempt, MAX_WRITE_ATTEMPTS);
             }
-            LOG.info("Added {} pipeline commits to environment stage {}", finalSetOfDeployedCommits.size(),
-                    application.getEnvironment());
-            finalSetOfDeployedCommits.sort(Comparator.comparing(PipelineCommit::getTimestamp).reversed());
-            environmentStage.setCommits(new LinkedHashSet<>(finalSetOfDeployedCommits));
-            pipelineRepository.save(pipeline);
         }
     }
-    protected Pipeline getOrCreatePipeline(CollectorItem collectorItem) {
-        Pipeline pipeline = pipelineRepository.findByCollectorItemId(collectorItem.getId());
-        if (pipeline == null) {
-            pipeline = new Pipeline();
-            pipeline.setCollectorItemId(collectorItem.getId());
+
+    /**
+     * Commits of one environment waiting to be merged.
+     */
+    private static class DeferredCommits {
+        private final TeamcityApplication application;
+        private final String environmentName;
+        private final Map<String, PipelineCommit> commits = new HashMap<>();
+        private long lastMerged;
+
+        DeferredCommits(TeamcityApplication application, String environmentName) {
+            this.application = application;
+            this.environmentName = environmentName;
+        }
+    }
+
+    private static boolean sameCommits(Collection<PipelineCommit> stored, Collection<PipelineCommit> merged) {
+        if (stored == null || stored.size() != merged.size()) {
+            return false;
+        }
+        Map<String, Long> storedTimestamps = new HashMap<>();
+        for (PipelineCommit commit : stored) {
+            storedTimestamps.put(commit.getScmRevisionNumber(), commit.getTimestamp());
+        }
+        for (PipelineCommit commit : merged) {
+            Long timestamp = storedTimestamps.get(commit.getScmRevisionNumber());
+            if (timestamp == null || timestamp != commit.getTimestamp()) {
+                return false;
+            }
         }
-        return pipeline;
+        return true;
     }
 }
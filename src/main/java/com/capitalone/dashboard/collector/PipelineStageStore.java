@@ -0,0 +1,95 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Pipeline;
+import com.capitalone.dashboard.model.PipelineCommit;
+import com.capitalone.dashboard.model.PipelineStage;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+
+/**
+ * Reads and writes single environment stages of {@link Pipeline} documents, so the rest of the
+ * document written by other collectors is neither transferred nor overwritten.
+ * <p>
+ * Writes are optimistic: every write increments {@link #VERSION}, and only succeeds when the
+ * document still carries the version that was read. Full saves by other collectors drop the field,
+ * which also counts as a concurrent change.
+ */
+@Component
+public class PipelineStageStore {
+    static final String VERSION = "teamcityVersion";
+    private static final String STAGES = "environmentStageMap";
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public PipelineStageStore(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Reads the given environment stage, and optionally the commit stage, of a collector item's pipeline.
+     *
+     * @return the partially loaded pipeline, or null if the collector item has no pipeline
+     */
+    public Snapshot read(ObjectId collectorItemId, String environmentName, boolean includeCommitStage) {
+        BasicDBObject fields = new BasicDBObject("collectorItemId", 1)
+                .append(STAGES + "." + environmentName, 1)
+                .append(VERSION, 1);
+        if (includeCommitStage) {
+            fields.append(STAGES + "." + PipelineStage.COMMIT.getName(), 1);
+        }
+        DBObject dbObject = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Pipeline.class))
+                .findOne(new BasicDBObject("collectorItemId", collectorItemId), fields);
+        if (dbObject == null) {
+            return null;
+        }
+        Object version = dbObject.get(VERSION);
+        return new Snapshot(mongoTemplate.getConverter().read(Pipeline.class, dbObject),
+                version instanceof Number ? ((Number) version).longValue() : 0);
+    }
+
+    /**
+     * Replaces the commits of one environment stage with an atomic $set.
+     *
+     * @return false when the pipeline changed since it was read, nothing is written then
+     */
+    public boolean writeCommits(Snapshot snapshot, String environmentName, Collection<PipelineCommit> commits) {
+        Criteria criteria = Criteria.where("_id").is(snapshot.getPipeline().getId());
+        criteria = snapshot.getVersion() == 0
+                ? criteria.and(VERSION).exists(false) : criteria.and(VERSION).is(snapshot.getVersion());
+        Update update = new Update()
+                .set(STAGES + "." + environmentName + ".commits", commits)
+                .set(VERSION, snapshot.getVersion() + 1);
+        return mongoTemplate.updateFirst(new Query(criteria), update, Pipeline.class).getN() > 0;
+    }
+
+    /**
+     * A pipeline as read, along with the version it was read at.
+     */
+    public static final class Snapshot {
+        private final Pipeline pipeline;
+        private final long version;
+
+        Snapshot(Pipeline pipeline, long version) {
+            this.pipeline = pipeline;
+            this.version = version;
+        }
+
+        public Pipeline getPipeline() {
+            return pipeline;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package com.capitalone.dashboard.collector;
 
 import com.capitalone.dashboard.util.Supplier;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.ssl.TrustStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
@@ -17,6 +25,7 @@ import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -24,9 +33,13 @@ import java.security.cert.CertificateException;
  */
 @Component
 public class RestOperationsSupplier implements Supplier<RestOperations> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RestOperationsSupplier.class);
+
     @Autowired
     TeamcitySettings settings;
 
+    private volatile InstrumentedConnectionManager connectionManager;
+
     @Override
     public RestOperations get() {
         TrustStrategy acceptingTrustStrategy = new TrustStrategy() {
@@ -47,10 +60,45 @@ public class RestOperationsSupplier implements Supplier<RestOperations> {
             e.printStackTrace();
         }
         SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(sslContext, new NoopHostnameVerifier());
-        CloseableHttpClient httpClient = HttpClients.custom().setSSLSocketFactory(csf).build();
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", csf)
+                .build();
+        InstrumentedConnectionManager manager = new InstrumentedConnectionManager(registry, settings);
+        manager.setMaxTotal(settings.getMaxConnections());
+        manager.setDefaultMaxPerRoute(settings.getMaxConnectionsPerServer());
+        manager.setValidateAfterInactivity(settings.getValidateAfterInactivityMillis());
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(settings.getConnectTimeout())
+                .setSocketTimeout(settings.getReadTimeout())
+                .setConnectionRequestTimeout(settings.getConnectionRequestTimeout())
+                .build();
+        long keepAlive = settings.getKeepAliveMillis();
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(manager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    // honour the server's Keep-Alive header, otherwise keep idle connections for the configured time
+                    long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return duration > 0 ? duration : keepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .build();
+        connectionManager = manager;
         HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory();
         requestFactory.setHttpClient(httpClient);
         RestTemplate restTemplate = new RestTemplate(requestFactory);
         return restTemplate;
     }
+
+    /**
+     * Logs the connection pool usage and lease wait times since the last call.
+     */
+    public void logPoolStats() {
+        InstrumentedConnectionManager manager = connectionManager;
+        if (manager != null) {
+            LOGGER.info("HTTP connection pool: {}", manager.drainStats());
+        }
+    }
 }
@@ -0,0 +1,229 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.TeamcityBuildRecord;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Streams Teamcity build responses straight into {@link TeamcityBuildRecord}s. Only the fields the
+ * collector uses are read, everything else (changes, properties, agent, ...) is skipped without
+ * being materialized.
+ */
+final class TeamcityBuildReader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TeamcityBuildReader.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+
+    private static final DateTimeFormatter LOCATOR_DATE_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssZ").withZone(ZoneOffset.UTC);
+
+    private TeamcityBuildReader() {
+    }
+
+    /**
+     * Reads a builds listing ({@code {"count": n, "build": [...]}}).
+     *
+     * @param body response body
+     * @return the builds of the listing, in response order
+     * @throws IOException if the body is not valid JSON
+     */
+    static List<TeamcityBuildRecord> readBuilds(InputStream body) throws IOException {
+        return readBuilds(body, id -> null);
+    }
+
+    /**
+     * Reads a builds listing, taking builds that are already known from {@code known} instead of reading them.
+     * Teamcity lists the id first, so the rest of a known build is skipped without being converted.
+     *
+     * @param body  response body
+     * @param known returns the known build of an id, or null to read the build
+     * @return the builds of the listing, in response order
+     * @throws IOException if the body is not valid JSON
+     */
+    static List<TeamcityBuildRecord> readBuilds(InputStream body, Function<String, TeamcityBuildRecord> known)
+            throws IOException {
+        List<TeamcityBuildRecord> builds = new ArrayList<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return builds;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && "build".equals(field)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        builds.add(readBuild(parser, known));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * Reads a single build.
+     *
+     * @param body response body
+     * @return the build, or null for an empty body
+     * @throws IOException if the body is not valid JSON
+     */
+    static TeamcityBuildRecord readBuild(InputStream body) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            return parser.nextToken() == JsonToken.START_OBJECT ? readBuild(parser, id -> null) : null;
+        }
+    }
+
+    /**
+     * Converts a Teamcity date such as {@code 20200131T101500+0100} to epoch millis.
+     *
+     * @param date Teamcity date
+     * @return epoch millis
+     */
+    static long toMillis(String date) {
+        String dateWithoutOffset = date.substring(0, 15);
+        String offset = date.substring(15);
+        LocalDateTime formattedDateTime = LocalDateTime.parse(dateWithoutOffset, DATE_FORMATTER);
+        String formattedOffset = offset.substring(0, 3) + ":" + offset.substring(3);
+        ZoneOffset zoneOffset = ZoneOffset.of(formattedOffset);
+        return formattedDateTime.atOffset(zoneOffset).toEpochSecond() * 1000;
+    }
+
+    /**
+     * Converts epoch millis to a Teamcity date in UTC, such as {@code 20200131T091500+0000}.
+     *
+     * @param millis epoch millis
+     * @return Teamcity date
+     */
+    static String toDate(long millis) {
+        return LOCATOR_DATE_FORMATTER.format(Instant.ofEpochMilli(millis));
+    }
+
+    // The parser is on the START_OBJECT of the build
+    private static TeamcityBuildRecord readBuild(JsonParser parser, Function<String, TeamcityBuildRecord> known)
+            throws IOException {
+        TeamcityBuildRecord build = new TeamcityBuildRecord();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "id":
+                    build.setBuildId(text(parser));
+                    TeamcityBuildRecord knownBuild = build.getBuildId() == null ? null : known.apply(build.getBuildId());
+                    if (knownBuild != null) {
+                        skipRest(parser);
+                        return knownBuild;
+                    }
+                    break;
+                case "status":
+                    build.setStatus(text(parser));
+                    break;
+                case "state":
+                    build.setState(text(parser));
+                    break;
+                case "branchName":
+                    build.setBranchName(text(parser));
+                    break;
+                case "buildTypeId":
+                    build.setBuildTypeId(text(parser));
+                    break;
+                case "buildType":
+                    build.setBuildTypeName(field(parser, "name"));
+                    break;
+                case "triggered":
+                    String date = field(parser, "date");
+                    if (date != null) {
+                        build.setTriggeredDate(toMillis(date));
+                    }
+                    break;
+                case "revisions":
+                    build.setRevision(firstRevision(parser, build.getBuildId()));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return build;
+    }
+
+    private static String firstRevision(JsonParser parser, String buildId) throws IOException {
+        String version = null;
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_ARRAY || !"revision".equals(field)) {
+                parser.skipChildren();
+                continue;
+            }
+            int revisions = 0;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                if (revisions++ == 0) {
+                    version = field(parser, "version");
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (revisions > 1) {
+                LOGGER.warn("Multiple revisions detected for build " + buildId + ", considering the first");
+            }
+        }
+        return version;
+    }
+
+    // Skips the remaining fields of the object the parser is in
+    private static void skipRest(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    // Reads one scalar field of the object the parser is on and skips the rest of it
+    private static String field(JsonParser parser, String name) throws IOException {
+        String value = null;
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (name.equals(field)) {
+                value = text(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+
+    private static String text(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!token.isScalarValue()) {
+            parser.skipChildren();
+            return null;
+        }
+        return parser.getText();
+    }
+}
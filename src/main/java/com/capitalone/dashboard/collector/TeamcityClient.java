@@ -4,15 +4,23 @@ import com.capitalone.dashboard.model.Environment;
 import com.capitalone.dashboard.model.EnvironmentComponent;
 import com.capitalone.dashboard.model.EnvironmentStatus;
 import com.capitalone.dashboard.model.TeamcityApplication;
+import com.capitalone.dashboard.model.TeamcityBuildRecord;
+import com.capitalone.dashboard.model.TeamcityBuildWatermark;
 import com.capitalone.dashboard.model.TeamcityEnvResCompData;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Client for fetching information from Teamcity.
  */
 public interface TeamcityClient {
 
+    /**
+     * Discards the dashboards and commit stages cached during the current collection cycle.
+     */
+    void clearCache();
+
     /**
      * Fetches all {@link TeamcityApplication}s for a given instance URL.
      *
@@ -37,4 +45,48 @@ public interface TeamcityClient {
      * @return list of {@link EnvironmentStatus}es
      */
     List<TeamcityEnvResCompData> getEnvironmentResourceStatusData(TeamcityApplication application, Environment environment);
+
+    /**
+     * Fetches the {@link EnvironmentStatus}es of builds started after the given watermark.
+     *
+     * @param application a {@link TeamcityApplication}
+     * @param environment an {@link Environment}
+     * @param watermark   last build already collected, or null to fetch the whole build history
+     * @return list of {@link EnvironmentStatus}es
+     * @throws org.springframework.web.client.RestClientException if any page of builds could not be read,
+     *                                                            nothing is returned for a partial history
+     */
+    List<TeamcityEnvResCompData> getEnvironmentResourceStatusData(TeamcityApplication application, Environment environment,
+                                                                  TeamcityBuildWatermark watermark);
+
+    /**
+     * Fetches the successful finished builds of every build type of a server started since the given time,
+     * with one request per page of builds instead of one per environment.
+     *
+     * @param instanceUrl instance URL
+     * @param sinceDate   epoch millis
+     * @return the builds by build type id, newest first
+     */
+    Map<String, List<TeamcityBuildRecord>> getRecentBuilds(String instanceUrl, long sinceDate);
+
+    /**
+     * Derives the {@link EnvironmentStatus}es of builds already fetched with {@link #getRecentBuilds}.
+     *
+     * @param application a {@link TeamcityApplication}
+     * @param environment an {@link Environment}
+     * @param watermark   last build already collected
+     * @param builds      builds of the environment's build type
+     * @return list of {@link EnvironmentStatus}es
+     */
+    List<TeamcityEnvResCompData> getEnvironmentResourceStatusData(TeamcityApplication application, Environment environment,
+                                                                  TeamcityBuildWatermark watermark, List<TeamcityBuildRecord> builds);
+
+    /**
+     * Fetches a single finished build.
+     *
+     * @param instanceUrl instance URL
+     * @param buildId     Teamcity build id
+     * @return the build, or null if Teamcity returned no details or the build has not finished
+     */
+    TeamcityBuildRecord getBuild(String instanceUrl, String buildId);
 }
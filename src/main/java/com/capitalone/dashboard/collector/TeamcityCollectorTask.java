@@ -2,21 +2,38 @@ package com.capitalone.dashboard.collector;
 
 import com.capitalone.dashboard.model.*;
 import com.capitalone.dashboard.repository.*;
-import com.google.common.collect.Iterables;
+import com.mongodb.DBCollection;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
+import javax.annotation.PreDestroy;
+
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 /**
  * Collects {@link EnvironmentComponent} and {@link EnvironmentStatus} data from
@@ -34,7 +51,19 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
     private final EnvironmentComponentRepository envComponentRepository;
     private final EnvironmentStatusRepository environmentStatusRepository;
     private final ConfigurationRepository configurationRepository;
-    private final ComponentRepository dbComponentRepository;
+    private final MongoTemplate mongoTemplate;
+    private final TeamcityBuildWatermarkRepository buildWatermarkRepository;
+    private final TeamcityBuildTypeRepository buildTypeRepository;
+    private final FinishedBuildCache finishedBuildCache;
+    private final RestOperationsSupplier restOperationsSupplier;
+    private final BulkWriter bulkWriter;
+    private final PipelineCommitProcessor pipelineCommitProcessor;
+    // Null when applications or environments are processed on the calling thread
+    private final ExecutorService applicationExecutor;
+    private final ExecutorService environmentExecutor;
+    // instanceUrl -> start of the last cycle that collected the server, see fetchRecentBuilds
+    private final Map<String, Long> changeFeedSince = new ConcurrentHashMap<>();
+    private final Pattern pipelineIgnorePattern;
 
     @Autowired
     public TeamcityCollectorTask(TaskScheduler taskScheduler,
@@ -44,7 +73,13 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
                                  EnvironmentStatusRepository environmentStatusRepository,
                                  TeamcitySettings teamcitySettings, TeamcityClient teamcityClient,
                                  ConfigurationRepository configurationRepository,
-                                 ComponentRepository dbComponentRepository) {
+                                 MongoTemplate mongoTemplate,
+                                 TeamcityBuildWatermarkRepository buildWatermarkRepository,
+                                 TeamcityBuildTypeRepository buildTypeRepository,
+                                 FinishedBuildCache finishedBuildCache,
+                                 RestOperationsSupplier restOperationsSupplier,
+                                 BulkWriter bulkWriter,
+                                 PipelineCommitProcessor pipelineCommitProcessor) {
         super(taskScheduler, "TeamcityDeployment");
         this.teamcityCollectorRepository = teamcityCollectorRepository;
         this.teamcityApplicationRepository = teamcityApplicationRepository;
@@ -52,8 +87,17 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
         this.teamcityClient = teamcityClient;
         this.envComponentRepository = envComponentRepository;
         this.environmentStatusRepository = environmentStatusRepository;
-        this.dbComponentRepository = dbComponentRepository;
+        this.mongoTemplate = mongoTemplate;
         this.configurationRepository = configurationRepository;
+        this.buildWatermarkRepository = buildWatermarkRepository;
+        this.buildTypeRepository = buildTypeRepository;
+        this.finishedBuildCache = finishedBuildCache;
+        this.restOperationsSupplier = restOperationsSupplier;
+        this.bulkWriter = bulkWriter;
+        this.pipelineCommitProcessor = pipelineCommitProcessor;
+        this.applicationExecutor = newExecutor(teamcitySettings.getApplicationParallelism(), "teamcity-application");
+        this.environmentExecutor = newExecutor(teamcitySettings.getEnvironmentParallelism(), "teamcity-environment");
+        this.pipelineIgnorePattern = Pattern.compile(teamcitySettings.getPipelineIgnoreMatcher());
     }
 
     @Override
@@ -83,76 +127,202 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
         return teamcitySettings.getCron();
     }
 
+    /**
+     * Runs one collection cycle. Synchronized with {@link #collectBuild} so builds reported by the
+     * webhook are written between cycles.
+     */
     @Override
-    public void collect(TeamcityCollector collector) {
-        for (String instanceUrl : collector.getDeployServers()) {
+    public synchronized void collect(TeamcityCollector collector) {
+        teamcityClient.clearCache();
+        try {
+            List<String> servers = collector.getDeployServers();
+            if (CollectionUtils.isEmpty(servers)) {
+                return;
+            }
+            // One snapshot of the collector's applications serves the whole run
+            List<TeamcityApplication> applications = loadApplications(collector);
+            clean(collector, applications);
+            Map<String, Map<String, TeamcityApplication>> applicationsByServer = new HashMap<>();
+            for (String instanceUrl : servers) {
+                applicationsByServer.put(instanceUrl, new LinkedHashMap<>());
+            }
+            for (TeamcityApplication application : applications) {
+                Map<String, TeamcityApplication> serverApplications = applicationsByServer.get(application.getInstanceUrl());
+                if (serverApplications != null) {
+                    serverApplications.put(application.getApplicationId(), application);
+                }
+            }
 
-            logBanner(instanceUrl);
+            Map<String, String> serverResults = new ConcurrentHashMap<>();
+            int parallelism = Math.min(teamcitySettings.getServerParallelism(), servers.size());
+            if (parallelism <= 1) {
+                for (String instanceUrl : servers) {
+                    collectServer(collector, instanceUrl, applicationsByServer.get(instanceUrl), serverResults);
+                }
+            } else {
+                collectServersInParallel(collector, servers, parallelism, applicationsByServer, serverResults);
+            }
+            for (String instanceUrl : servers) {
+                LOGGER.info("Server {}: {}", instanceUrl, serverResults.getOrDefault(instanceUrl, "not collected"));
+            }
+            Set<ObjectId> enabledApplicationIds = new HashSet<>();
+            for (TeamcityApplication application : applications) {
+                if (application.isEnabled()) {
+                    enabledApplicationIds.add(application.getId());
+                }
+            }
+            pipelineCommitProcessor.mergeDeferredPipelineCommits(enabledApplicationIds);
+        } finally {
+            teamcityClient.clearCache();
+            finishedBuildCache.flush();
+            restOperationsSupplier.logPoolStats();
+            bulkWriter.logStats();
+        }
+    }
 
-            long start = System.currentTimeMillis();
+    private void collectServersInParallel(TeamcityCollector collector, List<String> servers, int parallelism,
+                                          Map<String, Map<String, TeamcityApplication>> applicationsByServer,
+                                          Map<String, String> serverResults) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                r -> new Thread(r, "teamcity-server-" + threadCount.incrementAndGet()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String instanceUrl : servers) {
+                futures.add(executor.submit(() ->
+                        collectServer(collector, instanceUrl, applicationsByServer.get(instanceUrl), serverResults)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while waiting for the servers to be collected");
+        } catch (ExecutionException e) {
+            LOGGER.error("Server collection failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            clean(collector);
+    /**
+     * Collects a single server. Failures are logged and recorded in serverResults so they
+     * do not affect the other servers.
+     */
+    private void collectServer(TeamcityCollector collector, String instanceUrl,
+                               Map<String, TeamcityApplication> existingApplications, Map<String, String> serverResults) {
+        logBanner(instanceUrl);
 
+        long start = System.currentTimeMillis();
+        try {
             addNewApplications(teamcityClient.getApplications(instanceUrl),
-                    collector);
-            updateData(enabledApplications(collector, instanceUrl));
+                    collector, existingApplications);
+            updateData(enabledApplications(existingApplications), fetchRecentBuilds(instanceUrl));
+            if (teamcitySettings.isChangeFeed()) {
+                changeFeedSince.put(instanceUrl, start);
+            }
 
             log("Finished", start);
+            serverResults.put(instanceUrl, "finished in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to collect " + instanceUrl, e);
+            serverResults.put(instanceUrl, "failed after " + (System.currentTimeMillis() - start) + "ms: " + e.getMessage());
         }
     }
 
     /**
-     * Clean up unused deployment collector items
+     * Fetches the builds of the whole server since the last successful cycle with one feed instead of
+     * polling every environment. The feed reaches back {@code teamcity.changeFeedOverlapMinutes} further,
+     * to catch builds that were still running then and clock differences; builds collected before are
+     * skipped by the environment watermarks.
      *
-     * @param collector the {@link TeamcityCollector}
+     * @return builds by build type id, or null when every environment has to be polled
+     */
+    private Map<String, List<TeamcityBuildRecord>> fetchRecentBuilds(String instanceUrl) {
+        Long since = changeFeedSince.get(instanceUrl);
+        if (!teamcitySettings.isChangeFeed() || since == null) {
+            return null;
+        }
+        try {
+            return teamcityClient.getRecentBuilds(instanceUrl,
+                    since - TimeUnit.MINUTES.toMillis(teamcitySettings.getChangeFeedOverlapMinutes()));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Change feed of " + instanceUrl + " failed, polling every environment instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * Loads every {@link TeamcityApplication} of the collector with a single query.
      */
-    @SuppressWarnings("PMD.AvoidDeeplyNestedIfStmts")
-    private void clean(TeamcityCollector collector) {
-        deleteUnwantedJobs(collector);
-        Set<ObjectId> uniqueIDs = new HashSet<>();
-        for (com.capitalone.dashboard.model.Component comp : dbComponentRepository
-                .findAll()) {
-            if (comp.getCollectorItems() == null || comp.getCollectorItems().isEmpty()) continue;
-            List<CollectorItem> itemList = comp.getCollectorItems().get(
-                    CollectorType.Deployment);
-            if (itemList == null) continue;
-            for (CollectorItem ci : itemList) {
-                if (ci == null) continue;
-                uniqueIDs.add(ci.getId());
+    private List<TeamcityApplication> loadApplications(TeamcityCollector collector) {
+        List<TeamcityApplication> applications = new ArrayList<>();
+        for (TeamcityApplication app : teamcityApplicationRepository.findByCollectorIdIn(Collections.singleton(collector.getId()))) {
+            if (app != null) {
+                applications.add(app);
             }
         }
+        return applications;
+    }
+
+    /**
+     * Clean up unused deployment collector items
+     *
+     * @param collector    the {@link TeamcityCollector}
+     * @param applications the collector's applications, deleted ones are removed from it
+     */
+    private void clean(TeamcityCollector collector, List<TeamcityApplication> applications) {
+        List<TeamcityApplication> deleteAppList = deleteUnwantedJobs(collector, applications);
+        Set<ObjectId> uniqueIDs = findDashboardDeploymentItemIds();
         List<TeamcityApplication> appList = new ArrayList<>();
-        Set<ObjectId> udId = new HashSet<>();
-        udId.add(collector.getId());
-        for (TeamcityApplication app : teamcityApplicationRepository.findByCollectorIdIn(udId)) {
-            if (app != null) {
-                app.setEnabled(uniqueIDs.contains(app.getId()));
+        for (TeamcityApplication app : applications) {
+            if (app.isEnabled() != uniqueIDs.contains(app.getId())) {
+                app.setEnabled(!app.isEnabled());
                 appList.add(app);
             }
         }
-        teamcityApplicationRepository.save(appList);
+        bulkWriter.write(TeamcityApplication.class, appList, deleteAppList);
     }
 
-    private void deleteUnwantedJobs(TeamcityCollector collector) {
+    /**
+     * Ids of the Deployment collector items used by dashboard components. Reads only the ids with a
+     * distinct query instead of loading every component.
+     */
+    private Set<ObjectId> findDashboardDeploymentItemIds() {
+        DBCollection components = mongoTemplate.getCollection(
+                mongoTemplate.getCollectionName(com.capitalone.dashboard.model.Component.class));
+        Set<ObjectId> ids = new HashSet<>();
+        for (Object id : components.distinct("collectorItems.Deployment._id")) {
+            if (id instanceof ObjectId) {
+                ids.add((ObjectId) id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Removes the applications of servers that are no longer configured from {@code applications}.
+     *
+     * @return the removed applications, to be deleted
+     */
+    private List<TeamcityApplication> deleteUnwantedJobs(TeamcityCollector collector, List<TeamcityApplication> applications) {
 
         List<TeamcityApplication> deleteAppList = new ArrayList<>();
-        Set<ObjectId> udId = new HashSet<>();
-        udId.add(collector.getId());
-        for (TeamcityApplication app : teamcityApplicationRepository.findByCollectorIdIn(udId)) {
+        for (TeamcityApplication app : applications) {
             if (!collector.getDeployServers().contains(app.getInstanceUrl()) ||
                     (!app.getCollectorId().equals(collector.getId()))) {
                 deleteAppList.add(app);
             }
         }
-
-        teamcityApplicationRepository.delete(deleteAppList);
-
+        applications.removeAll(deleteAppList);
+        return deleteAppList;
     }
 
     private List<EnvironmentComponent> getEnvironmentComponent(List<TeamcityEnvResCompData> dataList, Environment environment) {
         List<EnvironmentComponent> returnList = new ArrayList<>();
         for (TeamcityEnvResCompData data : dataList) {
             EnvironmentComponent component = new EnvironmentComponent();
+            component.setComponentID(data.getComponentID());
             component.setComponentName(data.getComponentName());
             component.setCollectorItemId(data.getCollectorItemId());
             component.setComponentVersion(data
@@ -187,40 +357,327 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
     /**
      * For each {@link TeamcityApplication}, update the current
      * {@link EnvironmentComponent}s and {@link EnvironmentStatus}.
+     * Environments with a {@link TeamcityBuildWatermark} only fetch newer builds and keep
+     * their existing data, all other environments are replaced with their full build history.
+     * Applications and their environments are fetched in parallel when configured, the data of
+     * an application is always written by a single thread once all of its environments are fetched.
      *
      * @param teamcityApplications list of {@link TeamcityApplication}s
+     * @param recentBuilds         builds of the server's change feed by build type id, null to poll every environment
+     */
+    private void updateData(List<TeamcityApplication> teamcityApplications, Map<String, List<TeamcityBuildRecord>> recentBuilds) {
+        runAll(applicationExecutor, teamcityApplications, TeamcityApplication::getApplicationName, application -> {
+            updateApplication(application, teamcityClient.getEnvironments(application), recentBuilds, false);
+            return null;
+        });
+    }
+
+    /**
+     * Collects a finished build reported by {@link BuildFinishedWebhook} into the environment of
+     * every enabled application whose project contains the build type.
+     *
+     * @param instanceUrl Teamcity instance URL
+     * @param buildTypeId Teamcity build type id
+     * @param buildId     Teamcity build id
+     * @return false if the build type is not a deployment of any enabled application
      */
-    private void updateData(List<TeamcityApplication> teamcityApplications) {
-        for (TeamcityApplication application : teamcityApplications) {
-            List<EnvironmentComponent> compList = new ArrayList<>();
-            List<EnvironmentStatus> statusList = new ArrayList<>();
-            long startApp = System.currentTimeMillis();
-            for (Environment environment : teamcityClient
-                    .getEnvironments(application)) {
-                //TODO Perform the ignored environment check here
-                String environmentName = getEnvironmentName(environment);
-                environment.setName(environmentName);
-                List<TeamcityEnvResCompData> combinedDataList = teamcityClient
-                        .getEnvironmentResourceStatusData(application,
-                                environment);
-                compList.addAll(getEnvironmentComponent(combinedDataList, environment));
-                statusList.addAll(getEnvironmentStatus(combinedDataList));
+    public synchronized boolean collectBuild(String instanceUrl, String buildTypeId, String buildId) {
+        TeamcityCollector collector = teamcityCollectorRepository.findByName("TeamcityDeployment");
+        if (collector == null) {
+            return false;
+        }
+        Map<String, List<TeamcityBuildRecord>> builds = null;
+        for (TeamcityApplication application : findApplicationsOfBuildType(collector, instanceUrl, buildTypeId)) {
+            for (Environment environment : teamcityClient.getEnvironments(application)) {
+                if (!environment.getId().equals(buildTypeId)) {
+                    continue;
+                }
+                if (builds == null) {
+                    TeamcityBuildRecord build = teamcityClient.getBuild(instanceUrl, buildId);
+                    if (build == null) {
+                        return false;
+                    }
+                    builds = Collections.singletonMap(buildTypeId, Collections.singletonList(build));
+                }
+                updateApplication(application, Collections.singletonList(environment), builds, true);
             }
-            if (!compList.isEmpty()) {
-                List<EnvironmentComponent> existingComponents = envComponentRepository
-                        .findByCollectorItemId(application.getId());
-                envComponentRepository.delete(existingComponents);
-                envComponentRepository.save(compList);
+        }
+        return builds != null;
+    }
+
+    /**
+     * Finds the enabled applications that may contain a build type, from the stored build type
+     * classifications when there are any and from every enabled application of the server otherwise.
+     */
+    private List<TeamcityApplication> findApplicationsOfBuildType(TeamcityCollector collector, String instanceUrl,
+                                                                  String buildTypeId) {
+        if (teamcitySettings.getBuildTypeCacheTtlMinutes() <= 0) {
+            return teamcityApplicationRepository.findEnabledApplications(collector.getId(), instanceUrl);
+        }
+        List<TeamcityApplication> applications = new ArrayList<>();
+        for (TeamcityBuildType buildType : buildTypeRepository.findByInstanceUrlAndBuildTypeId(instanceUrl, buildTypeId)) {
+            TeamcityApplication application = teamcityApplicationRepository.findTeamcityApplication(collector.getId(),
+                    instanceUrl, buildType.getApplicationId());
+            if (application != null && application.isEnabled() && buildType.isDeployment()) {
+                applications.add(application);
             }
-            if (!statusList.isEmpty()) {
-                List<EnvironmentStatus> existingStatuses = environmentStatusRepository
-                        .findByCollectorItemId(application.getId());
-                environmentStatusRepository.delete(existingStatuses);
-                environmentStatusRepository.save(statusList);
+        }
+        return applications;
+    }
+
+    /**
+     * @param partial true when only the notified builds of some of the application's environments are
+     *                collected, the stored data of the others is kept then
+     */
+    private void updateApplication(TeamcityApplication application, List<Environment> environmentList,
+                                   Map<String, List<TeamcityBuildRecord>> recentBuilds, boolean partial) {
+        List<EnvironmentComponent> compList = new ArrayList<>();
+        List<EnvironmentStatus> statusList = new ArrayList<>();
+        Set<String> incrementalEnvironments = new HashSet<>();
+        Set<String> replacedEnvironments = new HashSet<>();
+        List<TeamcityBuildWatermark> changedWatermarks = new ArrayList<>();
+        Map<String, TeamcityBuildWatermark> watermarks = getBuildWatermarks(application);
+        long startApp = System.currentTimeMillis();
+        List<EnvironmentData> environments = runAll(environmentExecutor, environmentList, Environment::getName,
+                environment -> collectEnvironment(application, environment, watermarks.get(environment.getId()),
+                        recentBuilds, partial));
+        for (EnvironmentData data : environments) {
+            if (data.failed) {
+                // Nothing was read, the stored data and the watermark stay as they are
+                incrementalEnvironments.add(data.environment.getName());
+                continue;
+            }
+            if (data.incremental) {
+                incrementalEnvironments.add(data.environment.getName());
+            } else {
+                replacedEnvironments.add(data.environment.getName());
             }
+            if (data.watermark != null && (advanceWatermark(data.watermark, data.dataList) || data.polled)) {
+                changedWatermarks.add(data.watermark);
+            }
+            compList.addAll(getEnvironmentComponent(data.dataList, data.environment));
+            statusList.addAll(getEnvironmentStatus(data.dataList));
+        }
+        // Stored data of incremental environments is kept, the collected builds only add to it
+        Predicate<String> retained = partial
+                ? name -> !replacedEnvironments.contains(name) : incrementalEnvironments::contains;
+        // Deployments older than the lookback horizon are no longer collected, but stay stored. Latest only
+        // applications keep nothing but the latest deployment.
+        long horizon = teamcitySettings.isLatestOnly(application.getApplicationId())
+                ? 0 : teamcitySettings.getLookbackHorizon(application.getApplicationId());
+        Set<String> beyondHorizon = new HashSet<>();
+        if (!compList.isEmpty()) {
+            List<EnvironmentComponent> storedComponents = envComponentRepository.findByCollectorItemId(application.getId());
+            for (EnvironmentComponent component : storedComponents) {
+                if (component.getAsOfDate() < horizon) {
+                    beyondHorizon.add(componentKey(component));
+                }
+            }
+            DocumentDiff<EnvironmentComponent> componentDiff = DocumentDiff.compute(
+                    storedComponents, compList,
+                    TeamcityCollectorTask::componentKey, this::changed,
+                    c -> retained.test(c.getEnvironmentName()) || beyondHorizon.contains(componentKey(c)));
+            write(EnvironmentComponent.class, componentDiff);
+            LOGGER.debug("{} components: {}", application.getApplicationName(), componentDiff);
+        }
+        if (!statusList.isEmpty()) {
+            DocumentDiff<EnvironmentStatus> statusDiff = DocumentDiff.compute(
+                    environmentStatusRepository.findByCollectorItemId(application.getId()), statusList,
+                    TeamcityCollectorTask::statusKey, this::changed,
+                    s -> retained.test(s.getEnvironmentName()) || beyondHorizon.contains(componentKey(s)));
+            write(EnvironmentStatus.class, statusDiff);
+            LOGGER.debug("{} statuses: {}", application.getApplicationName(), statusDiff);
+        }
+        // Only move the watermarks once the data they cover has been stored
+        buildWatermarkRepository.save(changedWatermarks);
+
+        log(" " + application.getApplicationName(), startApp);
+    }
+
+    /**
+     * Environments collected before take their builds from the change feed when there is one, those
+     * without builds in the feed are not requested at all. All others are polled. An environment whose
+     * builds could not be read is returned as failed.
+     * <p>
+     * Notified builds are added to the stored data, the history is never polled for them. An environment
+     * not collected before gets no watermark from them, its first poll still reads the history.
+     */
+    private EnvironmentData collectEnvironment(TeamcityApplication application, Environment environment,
+                                               TeamcityBuildWatermark watermark,
+                                               Map<String, List<TeamcityBuildRecord>> recentBuilds, boolean notified) {
+        boolean incremental = watermark != null && !teamcitySettings.isFullResync();
+        // Every build of an environment is of the environment's build type, so ignored pipelines are not requested at all
+        boolean ignored = pipelineIgnorePattern.matcher(StringUtils.defaultString(environment.getName())).matches();
+        environment.setName(getEnvironmentName(environment));
+        List<TeamcityEnvResCompData> dataList;
+        long polledDate = 0;
+        try {
+            if (ignored) {
+                dataList = Collections.emptyList();
+            } else if (notified || incremental && recentBuilds != null) {
+                List<TeamcityBuildRecord> builds = recentBuilds.get(environment.getId());
+                dataList = builds == null ? Collections.emptyList()
+                        : teamcityClient.getEnvironmentResourceStatusData(application, environment, watermark, builds);
+            } else {
+                polledDate = System.currentTimeMillis();
+                dataList = teamcityClient.getEnvironmentResourceStatusData(application,
+                        environment, incremental ? watermark : null);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to collect environment " + environment.getName() + " of "
+                    + application.getApplicationName() + ", keeping its stored data", e);
+            return new EnvironmentData(environment, Collections.emptyList(), watermark, true, true, false);
+        }
+        // The latest deployment of a latest only environment replaces its stored data, which is kept otherwise
+        boolean latestOnly = teamcitySettings.isLatestOnly(application.getApplicationId());
+        if (notified) {
+            return new EnvironmentData(environment, dataList, watermark, !latestOnly || dataList.isEmpty(), false, false);
+        }
+        if (watermark == null) {
+            watermark = new TeamcityBuildWatermark(application.getId(), environment.getId());
+        }
+        // The next poll starts from this one even without any deployment. The poll alone is only saved for
+        // new watermarks and once it is older than the overlap, so the polled window stays short.
+        boolean polled = false;
+        if (polledDate > 0) {
+            long lastPolledDate = watermark.getLastPolledDate();
+            watermark.polled(polledDate);
+            polled = watermark.getId() == null || polledDate - lastPolledDate
+                    > TimeUnit.MINUTES.toMillis(teamcitySettings.getWatermarkOverlapMinutes());
+        }
+        return new EnvironmentData(environment, dataList, watermark,
+                latestOnly ? dataList.isEmpty() : incremental, false, polled);
+    }
+
+    /**
+     * Applies {@code task} to every item on {@code executor}, or on the calling thread when there is
+     * no executor. Either way every item is run and every failure is logged, the first failure is
+     * rethrown once all items are done. Results keep the item order.
+     */
+    private static <T, R> List<R> runAll(ExecutorService executor, List<T> items, Function<T, String> name,
+                                         Function<T, R> task) {
+        List<R> results = new ArrayList<>();
+        RuntimeException failure = null;
+        if (executor == null || items.size() <= 1) {
+            for (T item : items) {
+                try {
+                    results.add(task.apply(item));
+                } catch (RuntimeException e) {
+                    LOGGER.error("Failed to collect " + name.apply(item), e);
+                    failure = failure == null ? e : failure;
+                }
+            }
+        } else {
+            List<Future<R>> futures = new ArrayList<>();
+            for (T item : items) {
+                futures.add(executor.submit(() -> task.apply(item)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    futures.forEach(f -> f.cancel(true));
+                    throw new IllegalStateException("Interrupted while collecting", e);
+                } catch (ExecutionException e) {
+                    RuntimeException cause = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+                    LOGGER.error("Failed to collect " + name.apply(items.get(i)), cause);
+                    failure = failure == null ? cause : failure;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    private static ExecutorService newExecutor(int parallelism, String name) {
+        if (parallelism <= 1) {
+            return null;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (applicationExecutor != null) {
+            applicationExecutor.shutdownNow();
+        }
+        if (environmentExecutor != null) {
+            environmentExecutor.shutdownNow();
+        }
+    }
 
-            log(" " + application.getApplicationName(), startApp);
+    /**
+     * Builds fetched for one environment, before they are written.
+     */
+    private static class EnvironmentData {
+        private final Environment environment;
+        private final List<TeamcityEnvResCompData> dataList;
+        // null when the collected builds must not move the watermark
+        private final TeamcityBuildWatermark watermark;
+        private final boolean incremental;
+        // The builds could not be read, the environment is neither written nor its watermark moved
+        private final boolean failed;
+        // The watermark is saved for the poll even when no build moved it
+        private final boolean polled;
+
+        EnvironmentData(Environment environment, List<TeamcityEnvResCompData> dataList,
+                        TeamcityBuildWatermark watermark, boolean incremental, boolean failed, boolean polled) {
+            this.environment = environment;
+            this.dataList = dataList;
+            this.watermark = watermark;
+            this.incremental = incremental;
+            this.failed = failed;
+            this.polled = polled;
+        }
+    }
+
+    /**
+     * Writes the new, changed and deleted documents of a diff in bulk. Deletes are sent after every
+     * save is applied, so readers never see a replaced environment without data.
+     */
+    private <T extends BaseModel> void write(Class<T> type, DocumentDiff<T> diff) {
+        List<T> saves = new ArrayList<>(diff.getInserts());
+        saves.addAll(diff.getUpdates());
+        bulkWriter.write(type, saves, diff.getDeletes());
+    }
+
+    private static String componentKey(EnvironmentComponent component) {
+        return component.getEnvironmentName() + '|' + component.getComponentName() + '|' + component.getComponentID();
+    }
+
+    // the key of the component a status belongs to
+    private static String componentKey(EnvironmentStatus status) {
+        return status.getEnvironmentName() + '|' + status.getComponentName() + '|' + status.getComponentID();
+    }
+
+    private static String statusKey(EnvironmentStatus status) {
+        return status.getEnvironmentName() + '|' + status.getComponentName() + '|' + status.getComponentID()
+                + '|' + status.getResourceName();
+    }
+
+    private Map<String, TeamcityBuildWatermark> getBuildWatermarks(TeamcityApplication application) {
+        Map<String, TeamcityBuildWatermark> watermarks = new HashMap<>();
+        for (TeamcityBuildWatermark watermark : buildWatermarkRepository.findByCollectorItemId(application.getId())) {
+            watermarks.put(watermark.getEnvironmentId(), watermark);
         }
+        return watermarks;
+    }
+
+    private boolean advanceWatermark(TeamcityBuildWatermark watermark, List<TeamcityEnvResCompData> dataList) {
+        boolean changed = false;
+        for (TeamcityEnvResCompData data : dataList) {
+            changed |= watermark.advance(NumberUtils.toLong(data.getComponentID()), data.getAsOfDate());
+        }
+        return changed;
     }
 
     private String getEnvironmentName(Environment environment) {
@@ -233,26 +690,34 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
         return underscoredName;
     }
 
-    private List<TeamcityApplication> enabledApplications(
-            TeamcityCollector collector, String instanceUrl) {
-        return teamcityApplicationRepository.findEnabledApplications(
-                collector.getId(), instanceUrl);
+    private List<TeamcityApplication> enabledApplications(Map<String, TeamcityApplication> applications) {
+        List<TeamcityApplication> enabled = new ArrayList<>();
+        for (TeamcityApplication application : applications.values()) {
+            if (application.isEnabled()) {
+                enabled.add(application);
+            }
+        }
+        return enabled;
     }
 
     /**
-     * Add any new {@link TeamcityApplication}s.
+     * Add any new {@link TeamcityApplication}s and fill in missing nice names.
+     * Both are written as one batch.
      *
-     * @param applications list of {@link TeamcityApplication}s
-     * @param collector    the {@link TeamcityCollector}
+     * @param applications         list of {@link TeamcityApplication}s
+     * @param collector            the {@link TeamcityCollector}
+     * @param existingApplications stored applications of the server by application id, new ones are added to it
      */
     private void addNewApplications(List<TeamcityApplication> applications,
-                                    TeamcityCollector collector) {
+                                    TeamcityCollector collector,
+                                    Map<String, TeamcityApplication> existingApplications) {
         long start = System.currentTimeMillis();
         int count = 0;
 
         log("All apps", start, applications.size());
+        List<TeamcityApplication> saves = new ArrayList<>();
         for (TeamcityApplication application : applications) {
-            TeamcityApplication existing = findExistingApplication(collector, application);
+            TeamcityApplication existing = existingApplications.get(application.getApplicationId());
 
             String niceName = getNiceName(application, collector);
             if (existing == null) {
@@ -262,29 +727,19 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
                 if (StringUtils.isNotEmpty(niceName)) {
                     application.setNiceName(niceName);
                 }
-                try {
-                    teamcityApplicationRepository.save(application);
-                } catch (org.springframework.dao.DuplicateKeyException ce) {
-                    log("Duplicates items not allowed", 0);
-
-                }
+                existingApplications.put(application.getApplicationId(), application);
+                saves.add(application);
                 count++;
             } else if (StringUtils.isEmpty(existing.getNiceName()) && StringUtils.isNotEmpty(niceName)) {
                 existing.setNiceName(niceName);
-                teamcityApplicationRepository.save(existing);
+                saves.add(existing);
             }
 
         }
+        bulkWriter.save(TeamcityApplication.class, saves);
         log("New apps", start, count);
     }
 
-    private TeamcityApplication findExistingApplication(TeamcityCollector collector,
-                                                        TeamcityApplication application) {
-        return teamcityApplicationRepository.findTeamcityApplication(
-                collector.getId(), application.getInstanceUrl(),
-                application.getApplicationId());
-    }
-
     private String getNiceName(TeamcityApplication application, TeamcityCollector collector) {
         if (CollectionUtils.isEmpty(collector.getDeployServers())) return "";
         List<String> servers = collector.getDeployServers();
@@ -298,43 +753,13 @@ public class TeamcityCollectorTask extends CollectorTask<TeamcityCollector> {
         return "";
     }
 
-    @SuppressWarnings("unused")
     private boolean changed(EnvironmentStatus status, EnvironmentStatus existing) {
         return existing.isOnline() != status.isOnline();
     }
 
-    @SuppressWarnings("unused")
-    private EnvironmentStatus findExistingStatus(
-            final EnvironmentStatus proposed,
-            List<EnvironmentStatus> existingStatuses) {
-
-        return Iterables.tryFind(existingStatuses,
-                existing -> existing.getEnvironmentName().equals(
-                        proposed.getEnvironmentName())
-                        && existing.getComponentName().equals(
-                        proposed.getComponentName())
-                        && existing.getResourceName().equals(
-                        proposed.getResourceName())).orNull();
-    }
-
-    @SuppressWarnings("unused")
     private boolean changed(EnvironmentComponent component,
                             EnvironmentComponent existing) {
         return existing.isDeployed() != component.isDeployed()
-                || existing.getAsOfDate() != component.getAsOfDate() || !existing.getComponentVersion().equalsIgnoreCase(component.getComponentVersion());
-    }
-
-
-    @SuppressWarnings("unused")
-    private EnvironmentComponent findExistingComponent(
-            final EnvironmentComponent proposed,
-            List<EnvironmentComponent> existingComponents) {
-
-        return Iterables.tryFind(existingComponents,
-                existing -> existing.getEnvironmentName().equals(
-                        proposed.getEnvironmentName())
-                        && existing.getComponentName().equals(
-                        proposed.getComponentName())).orNull();
+                || existing.getAsOfDate() != component.getAsOfDate() || !StringUtils.equalsIgnoreCase(existing.getComponentVersion(), component.getComponentVersion());
     }
 }
-
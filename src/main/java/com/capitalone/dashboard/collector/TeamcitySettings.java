@@ -6,7 +6,10 @@ import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Bean to hold settings specific to the Teamcity collector.
@@ -20,10 +23,71 @@ public class TeamcitySettings {
     private List<String> servers = new ArrayList<>();
     private List<String> niceNames = new ArrayList<>();
     private String projectIds = "";
+    private String latestOnlyProjectIds = "";
+    private List<Integer> serverMaxConnections = new ArrayList<>();
+    private Map<String, Integer> projectLookbackDays = new HashMap<>();
     @Value("${teamcity.branchMatcher:.*}")
     private String branchMatcher;
     @Value("${teamcity.pipelineIgnoreMatcher:ignore}")
     private String pipelineIgnoreMatcher;
+    @Value("${teamcity.buildFieldsProjection:true}")
+    private boolean buildFieldsProjection;
+    @Value("${teamcity.fullResync:false}")
+    private boolean fullResync;
+    @Value("${teamcity.affectedProjectDiscovery:true}")
+    private boolean affectedProjectDiscovery;
+    @Value("${teamcity.buildTypeCacheTtlMinutes:1440}")
+    private long buildTypeCacheTtlMinutes;
+    @Value("${teamcity.buildCacheSize:50000}")
+    private int buildCacheSize;
+    @Value("${teamcity.buildCacheFile:}")
+    private String buildCacheFile;
+    @Value("${teamcity.maxConnections:100}")
+    private int maxConnections;
+    @Value("${teamcity.maxConnectionsPerServer:20}")
+    private int maxConnectionsPerServer;
+    @Value("${teamcity.keepAliveMillis:30000}")
+    private long keepAliveMillis;
+    @Value("${teamcity.validateAfterInactivityMillis:2000}")
+    private int validateAfterInactivityMillis;
+    @Value("${teamcity.connectTimeout:20000}")
+    private int connectTimeout;
+    @Value("${teamcity.readTimeout:20000}")
+    private int readTimeout;
+    @Value("${teamcity.connectionRequestTimeout:10000}")
+    private int connectionRequestTimeout;
+    @Value("${teamcity.serverParallelism:1}")
+    private int serverParallelism;
+    @Value("${teamcity.applicationParallelism:1}")
+    private int applicationParallelism;
+    @Value("${teamcity.environmentParallelism:1}")
+    private int environmentParallelism;
+    @Value("${teamcity.maxRequestsPerServer:0}")
+    private int maxRequestsPerServer;
+    @Value("${teamcity.bulkBatchSize:500}")
+    private int bulkBatchSize;
+    @Value("${teamcity.commitCacheSize:10000}")
+    private int commitCacheSize;
+    @Value("${teamcity.commitMissTtlMinutes:10}")
+    private long commitMissTtlMinutes;
+    @Value("${teamcity.changeFeed:false}")
+    private boolean changeFeed;
+    @Value("${teamcity.changeFeedOverlapMinutes:60}")
+    private long changeFeedOverlapMinutes;
+    @Value("${teamcity.webhookPort:0}")
+    private int webhookPort;
+    @Value("${teamcity.webhookToken:}")
+    private String webhookToken;
+    @Value("${teamcity.webhookQueueSize:1000}")
+    private int webhookQueueSize;
+    @Value("${teamcity.latestOnly:false}")
+    private boolean latestOnly;
+    @Value("${teamcity.latestOnlyPipelineIntervalMinutes:0}")
+    private long latestOnlyPipelineIntervalMinutes;
+    @Value("${teamcity.lookbackDays:0}")
+    private int lookbackDays;
+    @Value("${teamcity.watermarkOverlapMinutes:60}")
+    private long watermarkOverlapMinutes;
 
     public String getCron() {
         return cron;
@@ -88,4 +152,285 @@ public class TeamcitySettings {
     public void setPipelineIgnoreMatcher(String pipelineIgnoreMatcher) {
         this.pipelineIgnoreMatcher = pipelineIgnoreMatcher;
     }
+
+    public boolean isBuildFieldsProjection() {
+        return buildFieldsProjection;
+    }
+
+    public void setBuildFieldsProjection(boolean buildFieldsProjection) {
+        this.buildFieldsProjection = buildFieldsProjection;
+    }
+
+    public boolean isFullResync() {
+        return fullResync;
+    }
+
+    public void setFullResync(boolean fullResync) {
+        this.fullResync = fullResync;
+    }
+
+    public boolean isAffectedProjectDiscovery() {
+        return affectedProjectDiscovery;
+    }
+
+    public void setAffectedProjectDiscovery(boolean affectedProjectDiscovery) {
+        this.affectedProjectDiscovery = affectedProjectDiscovery;
+    }
+
+    public long getBuildTypeCacheTtlMinutes() {
+        return buildTypeCacheTtlMinutes;
+    }
+
+    public void setBuildTypeCacheTtlMinutes(long buildTypeCacheTtlMinutes) {
+        this.buildTypeCacheTtlMinutes = buildTypeCacheTtlMinutes;
+    }
+
+    public int getBuildCacheSize() {
+        return buildCacheSize;
+    }
+
+    public void setBuildCacheSize(int buildCacheSize) {
+        this.buildCacheSize = buildCacheSize;
+    }
+
+    public String getBuildCacheFile() {
+        return buildCacheFile;
+    }
+
+    public void setBuildCacheFile(String buildCacheFile) {
+        this.buildCacheFile = buildCacheFile;
+    }
+
+    public List<Integer> getServerMaxConnections() {
+        return serverMaxConnections;
+    }
+
+    public void setServerMaxConnections(List<Integer> serverMaxConnections) {
+        this.serverMaxConnections = serverMaxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerServer() {
+        return maxConnectionsPerServer;
+    }
+
+    public void setMaxConnectionsPerServer(int maxConnectionsPerServer) {
+        this.maxConnectionsPerServer = maxConnectionsPerServer;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public int getValidateAfterInactivityMillis() {
+        return validateAfterInactivityMillis;
+    }
+
+    public void setValidateAfterInactivityMillis(int validateAfterInactivityMillis) {
+        this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    public int getServerParallelism() {
+        return serverParallelism;
+    }
+
+    public void setServerParallelism(int serverParallelism) {
+        this.serverParallelism = serverParallelism;
+    }
+
+    public int getApplicationParallelism() {
+        return applicationParallelism;
+    }
+
+    public void setApplicationParallelism(int applicationParallelism) {
+        this.applicationParallelism = applicationParallelism;
+    }
+
+    public int getEnvironmentParallelism() {
+        return environmentParallelism;
+    }
+
+    public void setEnvironmentParallelism(int environmentParallelism) {
+        this.environmentParallelism = environmentParallelism;
+    }
+
+    public int getMaxRequestsPerServer() {
+        return maxRequestsPerServer;
+    }
+
+    public void setMaxRequestsPerServer(int maxRequestsPerServer) {
+        this.maxRequestsPerServer = maxRequestsPerServer;
+    }
+
+    public int getBulkBatchSize() {
+        return bulkBatchSize;
+    }
+
+    public void setBulkBatchSize(int bulkBatchSize) {
+        this.bulkBatchSize = bulkBatchSize;
+    }
+
+    public int getCommitCacheSize() {
+        return commitCacheSize;
+    }
+
+    public void setCommitCacheSize(int commitCacheSize) {
+        this.commitCacheSize = commitCacheSize;
+    }
+
+    public long getCommitMissTtlMinutes() {
+        return commitMissTtlMinutes;
+    }
+
+    public void setCommitMissTtlMinutes(long commitMissTtlMinutes) {
+        this.commitMissTtlMinutes = commitMissTtlMinutes;
+    }
+
+    public boolean isChangeFeed() {
+        return changeFeed;
+    }
+
+    public void setChangeFeed(boolean changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
+    public long getChangeFeedOverlapMinutes() {
+        return changeFeedOverlapMinutes;
+    }
+
+    public void setChangeFeedOverlapMinutes(long changeFeedOverlapMinutes) {
+        this.changeFeedOverlapMinutes = changeFeedOverlapMinutes;
+    }
+
+    public int getWebhookPort() {
+        return webhookPort;
+    }
+
+    public void setWebhookPort(int webhookPort) {
+        this.webhookPort = webhookPort;
+    }
+
+    public String getWebhookToken() {
+        return webhookToken;
+    }
+
+    public void setWebhookToken(String webhookToken) {
+        this.webhookToken = webhookToken;
+    }
+
+    public int getWebhookQueueSize() {
+        return webhookQueueSize;
+    }
+
+    public void setWebhookQueueSize(int webhookQueueSize) {
+        this.webhookQueueSize = webhookQueueSize;
+    }
+
+    public boolean isLatestOnly() {
+        return latestOnly;
+    }
+
+    public void setLatestOnly(boolean latestOnly) {
+        this.latestOnly = latestOnly;
+    }
+
+    public void setLatestOnlyProjectIds(String latestOnlyProjectIds) {
+        this.latestOnlyProjectIds = latestOnlyProjectIds;
+    }
+
+    public List<String> getLatestOnlyProjectIds() {
+        return Arrays.asList(latestOnlyProjectIds.split(","));
+    }
+
+    /**
+     * @param applicationId Teamcity application ID
+     * @return whether only the latest deployment of each of the application's environments is collected
+     */
+    public boolean isLatestOnly(String applicationId) {
+        return latestOnly || getLatestOnlyProjectIds().contains(applicationId);
+    }
+
+    public long getLatestOnlyPipelineIntervalMinutes() {
+        return latestOnlyPipelineIntervalMinutes;
+    }
+
+    public void setLatestOnlyPipelineIntervalMinutes(long latestOnlyPipelineIntervalMinutes) {
+        this.latestOnlyPipelineIntervalMinutes = latestOnlyPipelineIntervalMinutes;
+    }
+
+    public int getLookbackDays() {
+        return lookbackDays;
+    }
+
+    public void setLookbackDays(int lookbackDays) {
+        this.lookbackDays = lookbackDays;
+    }
+
+    public Map<String, Integer> getProjectLookbackDays() {
+        return projectLookbackDays;
+    }
+
+    public void setProjectLookbackDays(Map<String, Integer> projectLookbackDays) {
+        this.projectLookbackDays = projectLookbackDays;
+    }
+
+    /**
+     * @param applicationId Teamcity application ID
+     * @return how many days of build history are collected for the application, 0 for all of it
+     */
+    public int getLookbackDays(String applicationId) {
+        return projectLookbackDays.getOrDefault(applicationId, lookbackDays);
+    }
+
+    /**
+     * @param applicationId Teamcity application ID
+     * @return epoch millis builds have to be started after to be collected, 0 when there is no horizon
+     */
+    public long getLookbackHorizon(String applicationId) {
+        int days = getLookbackDays(applicationId);
+        return days <= 0 ? 0 : System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+    }
+
+    public long getWatermarkOverlapMinutes() {
+        return watermarkOverlapMinutes;
+    }
+
+    public void setWatermarkOverlapMinutes(long watermarkOverlapMinutes) {
+        this.watermarkOverlapMinutes = watermarkOverlapMinutes;
+    }
 }
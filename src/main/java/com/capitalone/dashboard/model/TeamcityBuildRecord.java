@@ -0,0 +1,86 @@
+package com.capitalone.dashboard.model;
+
+/**
+ * The parts of a finished Teamcity build used to derive deployment data.
+ */
+public class TeamcityBuildRecord {
+    private String buildId;
+    private String status;
+    private String state;
+    private String branchName;
+    private String buildTypeId;
+    private String buildTypeName;
+    private long triggeredDate;
+    private String revision;
+
+    public String getBuildId() {
+        return buildId;
+    }
+
+    public void setBuildId(String buildId) {
+        this.buildId = buildId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    /**
+     * @return whether Teamcity reported the build as finished, a running build may already report SUCCESS
+     */
+    public boolean isFinished() {
+        return "finished".equals(state);
+    }
+
+    public String getBranchName() {
+        return branchName;
+    }
+
+    public void setBranchName(String branchName) {
+        this.branchName = branchName;
+    }
+
+    public String getBuildTypeId() {
+        return buildTypeId;
+    }
+
+    public void setBuildTypeId(String buildTypeId) {
+        this.buildTypeId = buildTypeId;
+    }
+
+    public String getBuildTypeName() {
+        return buildTypeName;
+    }
+
+    public void setBuildTypeName(String buildTypeName) {
+        this.buildTypeName = buildTypeName;
+    }
+
+    public long getTriggeredDate() {
+        return triggeredDate;
+    }
+
+    public void setTriggeredDate(long triggeredDate) {
+        this.triggeredDate = triggeredDate;
+    }
+
+    public String getRevision() {
+        return revision;
+    }
+
+    public void setRevision(String revision) {
+        this.revision = revision;
+    }
+}
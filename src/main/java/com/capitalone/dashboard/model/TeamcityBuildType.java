@@ -0,0 +1,97 @@
+package com.capitalone.dashboard.model;
+
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Objects;
+
+/**
+ * Classification of a Teamcity build type found under a {@link TeamcityApplication}'s project.
+ */
+@Document(collection = "teamcity_build_types")
+@CompoundIndexes({
+        @CompoundIndex(name = "instanceUrl_applicationId", def = "{'instanceUrl' : 1, 'applicationId' : 1}")
+})
+public class TeamcityBuildType extends BaseModel {
+    public static final String DEPLOYMENT = "DEPLOYMENT";
+    public static final String REGULAR = "REGULAR";
+
+    private String instanceUrl;
+    private String applicationId;
+    private String buildTypeId;
+    private String name;
+    private String projectId;
+    private String type;
+    private long lastRefreshed;
+
+    public String getInstanceUrl() {
+        return instanceUrl;
+    }
+
+    public void setInstanceUrl(String instanceUrl) {
+        this.instanceUrl = instanceUrl;
+    }
+
+    public String getApplicationId() {
+        return applicationId;
+    }
+
+    public void setApplicationId(String applicationId) {
+        this.applicationId = applicationId;
+    }
+
+    public String getBuildTypeId() {
+        return buildTypeId;
+    }
+
+    public void setBuildTypeId(String buildTypeId) {
+        this.buildTypeId = buildTypeId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public void setProjectId(String projectId) {
+        this.projectId = projectId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public long getLastRefreshed() {
+        return lastRefreshed;
+    }
+
+    public void setLastRefreshed(long lastRefreshed) {
+        this.lastRefreshed = lastRefreshed;
+    }
+
+    public boolean isDeployment() {
+        return DEPLOYMENT.equals(type);
+    }
+
+    /**
+     * @param other the same build type as classified previously
+     * @return true if the name, owning project or type differ from {@code other}
+     */
+    public boolean changedFrom(TeamcityBuildType other) {
+        return !Objects.equals(name, other.name)
+                || !Objects.equals(projectId, other.projectId)
+                || !Objects.equals(type, other.type);
+    }
+}
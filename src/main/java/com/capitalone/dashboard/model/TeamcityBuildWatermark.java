@@ -0,0 +1,99 @@
+package com.capitalone.dashboard.model;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Highest Teamcity build already collected for an environment of a {@link TeamcityApplication}.
+ * Later runs only ask Teamcity for builds started after it was triggered, less
+ * {@code teamcity.watermarkOverlapMinutes}: build ids are handed out when builds are queued, so a build
+ * below the watermark can still finish after it was collected. Environments polled before without any
+ * deployment start from the time of that poll instead.
+ */
+@Document(collection = "teamcity_build_watermarks")
+@CompoundIndexes({
+        @CompoundIndex(name = "collectorItemId_environmentId", def = "{'collectorItemId' : 1, 'environmentId' : 1}", unique = true)
+})
+public class TeamcityBuildWatermark extends BaseModel {
+    private ObjectId collectorItemId;
+    private String environmentId;
+    private long lastBuildId;
+    private long lastTriggeredDate;
+    private long lastPolledDate;
+
+    public TeamcityBuildWatermark() {
+    }
+
+    public TeamcityBuildWatermark(ObjectId collectorItemId, String environmentId) {
+        this.collectorItemId = collectorItemId;
+        this.environmentId = environmentId;
+    }
+
+    public ObjectId getCollectorItemId() {
+        return collectorItemId;
+    }
+
+    public void setCollectorItemId(ObjectId collectorItemId) {
+        this.collectorItemId = collectorItemId;
+    }
+
+    public String getEnvironmentId() {
+        return environmentId;
+    }
+
+    public void setEnvironmentId(String environmentId) {
+        this.environmentId = environmentId;
+    }
+
+    public long getLastBuildId() {
+        return lastBuildId;
+    }
+
+    public void setLastBuildId(long lastBuildId) {
+        this.lastBuildId = lastBuildId;
+    }
+
+    public long getLastTriggeredDate() {
+        return lastTriggeredDate;
+    }
+
+    public void setLastTriggeredDate(long lastTriggeredDate) {
+        this.lastTriggeredDate = lastTriggeredDate;
+    }
+
+    public long getLastPolledDate() {
+        return lastPolledDate;
+    }
+
+    public void setLastPolledDate(long lastPolledDate) {
+        this.lastPolledDate = lastPolledDate;
+    }
+
+    /**
+     * Records a poll of the environment that read every build since the watermark, the next poll
+     * starts from it even when no build was found.
+     *
+     * @param polledDate time the poll started
+     */
+    public void polled(long polledDate) {
+        lastPolledDate = Math.max(lastPolledDate, polledDate);
+    }
+
+    /**
+     * Moves the watermark forward to the given build if it is newer than the current one.
+     *
+     * @param buildId       Teamcity build id
+     * @param triggeredDate time the build was triggered
+     * @return true if the watermark changed
+     */
+    public boolean advance(long buildId, long triggeredDate) {
+        if (buildId <= lastBuildId) {
+            return false;
+        }
+        lastBuildId = buildId;
+        lastTriggeredDate = Math.max(lastTriggeredDate, triggeredDate);
+        return true;
+    }
+}
@@ -0,0 +1,31 @@
+package com.capitalone.dashboard.repository;
+
+import com.capitalone.dashboard.model.TeamcityBuildType;
+import org.bson.types.ObjectId;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.List;
+
+/**
+ * Repository for {@link TeamcityBuildType}s.
+ */
+public interface TeamcityBuildTypeRepository extends CrudRepository<TeamcityBuildType, ObjectId> {
+
+    /**
+     * Finds the build types found under a {@link com.capitalone.dashboard.model.TeamcityApplication}'s project.
+     *
+     * @param instanceUrl   Teamcity instance URL
+     * @param applicationId Teamcity application ID
+     * @return list of {@link TeamcityBuildType}s
+     */
+    List<TeamcityBuildType> findByInstanceUrlAndApplicationId(String instanceUrl, String applicationId);
+
+    /**
+     * Finds the stored classifications of a build type, one per application project it was found under.
+     *
+     * @param instanceUrl Teamcity instance URL
+     * @param buildTypeId Teamcity build type ID
+     * @return list of {@link TeamcityBuildType}s
+     */
+    List<TeamcityBuildType> findByInstanceUrlAndBuildTypeId(String instanceUrl, String buildTypeId);
+}
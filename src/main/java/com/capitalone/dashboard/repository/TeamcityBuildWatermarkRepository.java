@@ -0,0 +1,21 @@
+package com.capitalone.dashboard.repository;
+
+import com.capitalone.dashboard.model.TeamcityBuildWatermark;
+import org.bson.types.ObjectId;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.List;
+
+/**
+ * Repository for {@link TeamcityBuildWatermark}s.
+ */
+public interface TeamcityBuildWatermarkRepository extends CrudRepository<TeamcityBuildWatermark, ObjectId> {
+
+    /**
+     * Finds the watermarks of every environment of a {@link com.capitalone.dashboard.model.TeamcityApplication}.
+     *
+     * @param collectorItemId ID of the {@link com.capitalone.dashboard.model.TeamcityApplication}
+     * @return list of {@link TeamcityBuildWatermark}s
+     */
+    List<TeamcityBuildWatermark> findByCollectorItemId(ObjectId collectorItemId);
+}
@@ -0,0 +1,115 @@
+package com.capitalone.dashboard.collector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BuildFinishedWebhookTest {
+    private static final String SERVER = "http://teamcity.example.com";
+    private static final String TOKEN = "s3cret";
+
+    @Mock private TeamcityCollectorTask collectorTask;
+
+    private TeamcitySettings settings;
+    private BuildFinishedWebhook webhook;
+
+    @Before
+    public void init() throws IOException {
+        settings = new TeamcitySettings();
+        settings.setServers(Collections.singletonList(SERVER));
+        settings.setWebhookToken(TOKEN);
+        settings.setWebhookQueueSize(10);
+        webhook = new BuildFinishedWebhook(settings, collectorTask);
+        webhook.start(0);
+    }
+
+    @After
+    public void stop() {
+        webhook.stop();
+    }
+
+    @Test
+    public void collectsNotifiedBuild() throws IOException {
+        when(collectorTask.collectBuild(SERVER, "MyProject_DeployProd", "1234")).thenReturn(true);
+
+        assertEquals(202, post("Bearer " + TOKEN, "{\"buildId\":\"1234\",\"buildTypeId\":\"MyProject_DeployProd\"}"));
+
+        verify(collectorTask, timeout(5000)).collectBuild(SERVER, "MyProject_DeployProd", "1234");
+    }
+
+    @Test
+    public void queuesRunningBuildForTheCollectorToIgnore() throws IOException {
+        // Whether a build finished is only known once it is read from Teamcity
+        when(collectorTask.collectBuild(SERVER, "MyProject_DeployProd", "1235")).thenReturn(false);
+
+        assertEquals(202, post("Bearer " + TOKEN,
+                "{\"build\":{\"buildId\":1235,\"buildTypeId\":\"MyProject_DeployProd\",\"instanceUrl\":\"" + SERVER + "/\"}}"));
+
+        verify(collectorTask, timeout(5000)).collectBuild(SERVER, "MyProject_DeployProd", "1235");
+    }
+
+    @Test
+    public void rejectsMissingToken() throws IOException {
+        assertEquals(401, post(null, "{\"buildId\":\"1234\",\"buildTypeId\":\"MyProject_DeployProd\"}"));
+        verify(collectorTask, never()).collectBuild(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void rejectsWrongToken() throws IOException {
+        assertEquals(401, post("Bearer s3cre", "{\"buildId\":\"1234\",\"buildTypeId\":\"MyProject_DeployProd\"}"));
+        assertEquals(401, post(TOKEN, "{\"buildId\":\"1234\",\"buildTypeId\":\"MyProject_DeployProd\"}"));
+        verify(collectorTask, never()).collectBuild(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void rejectsUnknownServerAndMalformedBody() throws IOException {
+        assertEquals(400, post("Bearer " + TOKEN,
+                "{\"buildId\":\"1234\",\"buildTypeId\":\"MyProject_DeployProd\",\"instanceUrl\":\"http://elsewhere\"}"));
+        assertEquals(400, post("Bearer " + TOKEN, "{\"buildId\":\"latest\",\"buildTypeId\":\"MyProject_DeployProd\"}"));
+        assertEquals(400, post("Bearer " + TOKEN, "not json"));
+        verify(collectorTask, never()).collectBuild(anyString(), anyString(), anyString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesToStartWithoutToken() throws IOException {
+        settings.setWebhookToken("");
+        settings.setWebhookPort(8090);
+        new BuildFinishedWebhook(settings, collectorTask).start();
+    }
+
+    private int post(String authorization, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + webhook.getPort()
+                + BuildFinishedWebhook.PATH).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            if (authorization != null) {
+                connection.setRequestProperty("Authorization", authorization);
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
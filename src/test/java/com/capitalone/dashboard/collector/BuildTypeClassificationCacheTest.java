@@ -0,0 +1,123 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.TeamcityBuildType;
+import com.capitalone.dashboard.repository.TeamcityBuildTypeRepository;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BuildTypeClassificationCacheTest {
+    private static final String SERVER = "http://teamcity.example.com";
+
+    @Mock private TeamcityBuildTypeRepository buildTypeRepository;
+
+    private TeamcitySettings settings;
+    private BuildTypeClassificationCache cache;
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setBuildTypeCacheTtlMinutes(60);
+        cache = new BuildTypeClassificationCache(buildTypeRepository, settings);
+    }
+
+    @After
+    public void shutdown() {
+        cache.shutdown();
+    }
+
+    @Test
+    public void discoveredBuildTypesAreStored() {
+        when(buildTypeRepository.findByInstanceUrlAndApplicationId(SERVER, "MyProject")).thenReturn(Collections.emptyList());
+        List<TeamcityBuildType> discovered = Collections.singletonList(buildType(0));
+
+        assertSame(discovered, cache.getBuildTypes(SERVER, "MyProject", () -> discovered));
+
+        verify(buildTypeRepository).save(discovered);
+        assertTrue(discovered.get(0).getLastRefreshed() > 0);
+    }
+
+    @Test
+    public void failedDiscoveryIsNotStored() {
+        when(buildTypeRepository.findByInstanceUrlAndApplicationId(SERVER, "MyProject")).thenReturn(Collections.emptyList());
+
+        List<TeamcityBuildType> buildTypes = cache.getBuildTypes(SERVER, "MyProject", () -> {
+            throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE);
+        });
+
+        assertTrue(buildTypes.isEmpty());
+        verify(buildTypeRepository, never()).save(anyListOf(TeamcityBuildType.class));
+    }
+
+    @Test
+    public void storedBuildTypesAreServedWithoutDiscovery() {
+        List<TeamcityBuildType> stored = Collections.singletonList(buildType(System.currentTimeMillis()));
+        when(buildTypeRepository.findByInstanceUrlAndApplicationId(SERVER, "MyProject")).thenReturn(stored);
+
+        assertSame(stored, cache.getBuildTypes(SERVER, "MyProject", () -> {
+            throw new AssertionError("discovered again");
+        }));
+    }
+
+    @Test
+    public void expiredBuildTypesAreRefreshedInTheBackground() {
+        List<TeamcityBuildType> stored = Collections.singletonList(buildType(1));
+        when(buildTypeRepository.findByInstanceUrlAndApplicationId(SERVER, "MyProject")).thenReturn(stored);
+        List<TeamcityBuildType> discovered = Collections.singletonList(buildType(0));
+
+        assertSame(stored, cache.getBuildTypes(SERVER, "MyProject", () -> discovered));
+
+        verify(buildTypeRepository, timeout(5000)).save(discovered);
+        assertEquals(stored.get(0).getId(), discovered.get(0).getId());
+    }
+
+    @Test
+    public void failedRefreshKeepsStoredBuildTypes() throws InterruptedException {
+        List<TeamcityBuildType> stored = Collections.singletonList(buildType(1));
+        when(buildTypeRepository.findByInstanceUrlAndApplicationId(SERVER, "MyProject")).thenReturn(stored);
+        CountDownLatch refreshed = new CountDownLatch(1);
+
+        cache.getBuildTypes(SERVER, "MyProject", () -> {
+            refreshed.countDown();
+            throw new HttpServerErrorException(HttpStatus.BAD_GATEWAY);
+        });
+
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        cache.shutdown();
+        verify(buildTypeRepository, never()).save(anyListOf(TeamcityBuildType.class));
+    }
+
+    private static TeamcityBuildType buildType(long lastRefreshed) {
+        TeamcityBuildType buildType = new TeamcityBuildType();
+        if (lastRefreshed > 0) {
+            buildType.setId(new ObjectId());
+        }
+        buildType.setInstanceUrl(SERVER);
+        buildType.setApplicationId("MyProject");
+        buildType.setBuildTypeId("MyProject_DeployProd");
+        buildType.setType(TeamcityBuildType.DEPLOYMENT);
+        buildType.setLastRefreshed(lastRefreshed);
+        return buildType;
+    }
+}
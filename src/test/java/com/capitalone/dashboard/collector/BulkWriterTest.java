@@ -0,0 +1,143 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.EnvironmentComponent;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BulkWriterTest {
+    @Mock private MongoTemplate mongoTemplate;
+    @Mock private MongoConverter converter;
+    @Mock private DBCollection collection;
+    @Mock private BulkWriteOperation first;
+    @Mock private BulkWriteOperation second;
+    @Mock private BulkWriteOperation third;
+    @Mock private BulkWriteRequestBuilder request;
+
+    private TeamcitySettings settings;
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setBulkBatchSize(500);
+        when(mongoTemplate.getCollectionName(EnvironmentComponent.class)).thenReturn("environment_components");
+        when(mongoTemplate.getCollection("environment_components")).thenReturn(collection);
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        when(collection.initializeUnorderedBulkOperation()).thenReturn(first, second, third);
+        when(first.find(any(DBObject.class))).thenReturn(request);
+        when(second.find(any(DBObject.class))).thenReturn(request);
+        when(third.find(any(DBObject.class))).thenReturn(request);
+    }
+
+    @Test
+    public void insertsNewDocumentsAndReplacesStoredOnes() {
+        EnvironmentComponent inserted = component(null);
+        ObjectId id = new ObjectId();
+        EnvironmentComponent replaced = component(id);
+
+        new BulkWriter(mongoTemplate, settings).save(EnvironmentComponent.class, Arrays.asList(inserted, replaced));
+
+        assertNotNull(inserted.getId());
+        assertEquals(id, replaced.getId());
+        verify(first).insert(any(DBObject.class));
+        verify(first).find(any(DBObject.class));
+        verify(request).replaceOne(any(DBObject.class));
+        verify(first).execute();
+    }
+
+    @Test
+    public void sendsSavesInChunksBeforeDeletes() {
+        settings.setBulkBatchSize(2);
+
+        new BulkWriter(mongoTemplate, settings).write(EnvironmentComponent.class,
+                Arrays.asList(component(null), component(null), component(null)),
+                Collections.singletonList(component(new ObjectId())));
+
+        verify(first, times(2)).insert(any(DBObject.class));
+        verify(second).insert(any(DBObject.class));
+        verify(third).find(any(DBObject.class));
+        verify(request).removeOne();
+        InOrder order = inOrder(first, second, third);
+        order.verify(first).execute();
+        order.verify(second).execute();
+        order.verify(third).execute();
+    }
+
+    @Test
+    public void writesNothingWithoutDocuments() {
+        new BulkWriter(mongoTemplate, settings).write(EnvironmentComponent.class,
+                Collections.emptyList(), Collections.emptyList());
+
+        verify(collection, never()).initializeUnorderedBulkOperation();
+    }
+
+    @Test
+    public void skipsDuplicateKeyAndTakesTheIdOfTheSkippedInsertAway() {
+        EnvironmentComponent stored = component(null);
+        EnvironmentComponent duplicate = component(null);
+        BulkWriteException exception = mock(BulkWriteException.class);
+        when(exception.getWriteErrors()).thenReturn(Collections.singletonList(
+                new BulkWriteError(11000, "E11000 duplicate key error", new BasicDBObject(), 1)));
+        when(first.execute()).thenThrow(exception);
+
+        new BulkWriter(mongoTemplate, settings).save(EnvironmentComponent.class, Arrays.asList(stored, duplicate));
+
+        assertNotNull(stored.getId());
+        assertNull(duplicate.getId());
+    }
+
+    @Test
+    public void rethrowsOtherWriteErrors() {
+        BulkWriteException exception = mock(BulkWriteException.class);
+        when(exception.getWriteErrors()).thenReturn(Arrays.asList(
+                new BulkWriteError(11000, "E11000 duplicate key error", new BasicDBObject(), 0),
+                new BulkWriteError(121, "Document failed validation", new BasicDBObject(), 1)));
+        when(first.execute()).thenThrow(exception);
+
+        try {
+            new BulkWriter(mongoTemplate, settings).write(EnvironmentComponent.class,
+                    Arrays.asList(component(null), component(null)), Collections.singletonList(component(new ObjectId())));
+            fail("Expected the validation error");
+        } catch (BulkWriteException e) {
+            assertEquals(exception, e);
+        }
+        // Nothing is deleted once a save failed
+        verify(second, never()).execute();
+    }
+
+    private static EnvironmentComponent component(ObjectId id) {
+        EnvironmentComponent component = new EnvironmentComponent();
+        component.setId(id);
+        component.setEnvironmentName("dev");
+        return component;
+    }
+}
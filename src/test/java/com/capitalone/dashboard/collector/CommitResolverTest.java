@@ -0,0 +1,136 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Commit;
+import com.mongodb.DBObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CommitResolverTest {
+    @Mock private MongoTemplate mongoTemplate;
+
+    private TeamcitySettings settings;
+    private final List<Commit> stored = new ArrayList<>();
+    private final List<List<String>> lookups = new ArrayList<>();
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setCommitCacheSize(10);
+        settings.setCommitMissTtlMinutes(10);
+        when(mongoTemplate.find(any(Query.class), eq(Commit.class))).thenAnswer(invocation -> {
+            List<String> revisions = revisions((Query) invocation.getArguments()[0]);
+            lookups.add(revisions);
+            List<Commit> found = new ArrayList<>();
+            for (Commit commit : stored) {
+                if (revisions.contains(commit.getScmRevisionNumber())) {
+                    found.add(commit);
+                }
+            }
+            return found;
+        });
+    }
+
+    @Test
+    public void looksUpAllRevisionsWithOneQuery() {
+        stored.addAll(Arrays.asList(commit("a"), commit("b")));
+
+        Map<String, Commit> commits = new CommitResolver(mongoTemplate, settings).resolve(Arrays.asList("a", "b", "c"));
+
+        assertEquals(2, commits.size());
+        assertEquals("b", commits.get("b").getScmRevisionNumber());
+        assertEquals(Collections.singletonList(Arrays.asList("a", "b", "c")), lookups);
+    }
+
+    @Test
+    public void firstCommitOfARevisionWins() {
+        Commit first = commit("a");
+        stored.addAll(Arrays.asList(first, commit("a")));
+
+        Map<String, Commit> commits = new CommitResolver(mongoTemplate, settings).resolve(Collections.singletonList("a"));
+
+        assertSame(first, commits.get("a"));
+    }
+
+    @Test
+    public void resolvedCommitsAreNotLookedUpAgain() {
+        stored.addAll(Arrays.asList(commit("a"), commit("b")));
+        CommitResolver resolver = new CommitResolver(mongoTemplate, settings);
+        resolver.resolve(Collections.singletonList("a"));
+
+        Map<String, Commit> commits = resolver.resolve(Arrays.asList("a", "b"));
+
+        assertEquals(2, commits.size());
+        assertEquals(Arrays.asList(Collections.singletonList("a"), Collections.singletonList("b")), lookups);
+    }
+
+    @Test
+    public void leastRecentlyUsedCommitIsEvicted() {
+        settings.setCommitCacheSize(2);
+        stored.addAll(Arrays.asList(commit("a"), commit("b"), commit("c")));
+        CommitResolver resolver = new CommitResolver(mongoTemplate, settings);
+        resolver.resolve(Arrays.asList("a", "b"));
+        resolver.resolve(Collections.singletonList("a"));
+        resolver.resolve(Collections.singletonList("c"));
+        lookups.clear();
+
+        resolver.resolve(Arrays.asList("a", "b", "c"));
+
+        assertEquals(Collections.singletonList(Collections.singletonList("b")), lookups);
+    }
+
+    @Test
+    public void missIsNotLookedUpAgainWithinItsTtl() {
+        CommitResolver resolver = new CommitResolver(mongoTemplate, settings);
+        resolver.resolve(Collections.singletonList("a"));
+
+        assertTrue(resolver.resolve(Collections.singletonList("a")).isEmpty());
+
+        verify(mongoTemplate, times(1)).find(any(Query.class), eq(Commit.class));
+    }
+
+    @Test
+    public void missIsLookedUpAgainWithoutTtl() {
+        settings.setCommitMissTtlMinutes(0);
+        CommitResolver resolver = new CommitResolver(mongoTemplate, settings);
+        resolver.resolve(Collections.singletonList("a"));
+        stored.add(commit("a"));
+
+        assertEquals(1, resolver.resolve(Collections.singletonList("a")).size());
+
+        verify(mongoTemplate, times(2)).find(any(Query.class), eq(Commit.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> revisions(Query query) {
+        DBObject criteria = (DBObject) query.getQueryObject().get("scmRevisionNumber");
+        return new ArrayList<>((Collection<String>) criteria.get("$in"));
+    }
+
+    private static Commit commit(String revision) {
+        Commit commit = new Commit();
+        commit.setScmRevisionNumber(revision);
+        return commit;
+    }
+}
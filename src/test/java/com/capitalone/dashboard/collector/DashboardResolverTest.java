@@ -0,0 +1,117 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Collector;
+import com.capitalone.dashboard.model.CollectorItem;
+import com.capitalone.dashboard.model.CollectorType;
+import com.capitalone.dashboard.model.Component;
+import com.capitalone.dashboard.model.Dashboard;
+import com.capitalone.dashboard.repository.CollectorItemRepository;
+import com.capitalone.dashboard.repository.CollectorRepository;
+import com.capitalone.dashboard.repository.ComponentRepository;
+import com.capitalone.dashboard.repository.DashboardRepository;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DashboardResolverTest {
+    @Mock private CollectorRepository collectorRepository;
+    @Mock private CollectorItemRepository collectorItemRepository;
+    @Mock private ComponentRepository componentRepository;
+    @Mock private DashboardRepository dashboardRepository;
+
+    private final ObjectId collectorId = new ObjectId();
+    private final ObjectId productCollectorId = new ObjectId();
+    private final CollectorItem deployment = item("applicationId", "MyProject");
+    private final Component component = new Component("MyProject");
+    private final Dashboard dashboard = dashboard();
+
+    private DashboardResolver resolver;
+
+    @Before
+    public void init() {
+        component.setId(new ObjectId());
+        when(collectorItemRepository.findByCollectorIdIn(Collections.singletonList(collectorId)))
+                .thenReturn(Arrays.asList(deployment, item("applicationId", "MyProject"), item("other", "x")));
+        when(componentRepository.findByDeployCollectorItemId(deployment.getId()))
+                .thenReturn(Collections.singletonList(component));
+        when(dashboardRepository.findByApplicationComponentIdsIn(Collections.singletonList(component.getId())))
+                .thenReturn(Arrays.asList(dashboard, dashboard));
+        resolver = new DashboardResolver(collectorRepository, collectorItemRepository, componentRepository,
+                dashboardRepository);
+    }
+
+    @Test
+    public void resolvesTheDashboardsOfTheFirstDeploymentItem() {
+        assertEquals(Collections.singletonList(dashboard.getId().toString()),
+                resolver.getDashboardIds(collectorId, "MyProject"));
+    }
+
+    @Test
+    public void unknownApplicationHasNoDashboards() {
+        assertTrue(resolver.getDashboardIds(collectorId, "Unknown").isEmpty());
+    }
+
+    @Test
+    public void dashboardsAreCachedUntilCleared() {
+        resolver.getDashboardIds(collectorId, "MyProject");
+        resolver.getDashboardIds(collectorId, "MyProject");
+        resolver.getDashboardIds(collectorId, "Unknown");
+
+        verify(collectorItemRepository, times(1)).findByCollectorIdIn(Collections.singletonList(collectorId));
+        verify(dashboardRepository, times(1)).findByApplicationComponentIdsIn(any());
+
+        resolver.clear();
+        resolver.getDashboardIds(collectorId, "MyProject");
+
+        verify(collectorItemRepository, times(2)).findByCollectorIdIn(Collections.singletonList(collectorId));
+        verify(dashboardRepository, times(2)).findByApplicationComponentIdsIn(any());
+    }
+
+    @Test
+    public void productItemsAreGroupedByDashboard() {
+        Collector product = new Collector("Product", CollectorType.Product);
+        product.setId(productCollectorId);
+        CollectorItem first = item("dashboardId", "d1");
+        CollectorItem second = item("dashboardId", "d1");
+        CollectorItem other = item("dashboardId", "d2");
+        when(collectorRepository.findByCollectorType(CollectorType.Product)).thenReturn(Collections.singletonList(product));
+        when(collectorItemRepository.findByCollectorIdIn(Collections.singletonList(productCollectorId)))
+                .thenReturn(Arrays.asList(first, other, item("other", "x"), second));
+
+        assertEquals(Arrays.asList(first, second), resolver.getProductItems("d1"));
+        assertEquals(Collections.singletonList(other), resolver.getProductItems("d2"));
+        assertTrue(resolver.getProductItems("d3").isEmpty());
+
+        verify(collectorRepository, times(1)).findByCollectorType(CollectorType.Product);
+    }
+
+    private static CollectorItem item(String option, String value) {
+        CollectorItem item = new CollectorItem();
+        item.setId(new ObjectId());
+        item.getOptions().put(option, value);
+        return item;
+    }
+
+    private static Dashboard dashboard() {
+        Dashboard dashboard = mock(Dashboard.class);
+        ObjectId id = new ObjectId();
+        when(dashboard.getId()).thenReturn(id);
+        return dashboard;
+    }
+}
@@ -0,0 +1,384 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Environment;
+import com.capitalone.dashboard.model.TeamcityApplication;
+import com.capitalone.dashboard.model.TeamcityBuildRecord;
+import com.capitalone.dashboard.model.TeamcityBuildType;
+import com.capitalone.dashboard.model.TeamcityBuildWatermark;
+import com.capitalone.dashboard.model.TeamcityEnvResCompData;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestOperations;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.endsWith;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DefaultTeamcityClientTest {
+    private static final String SERVER = "http://teamcity.example.com";
+    private static final String PROD = "MyProject_DeployProd";
+    private static final String DEV = "MyProject_DeployDev";
+    private static final String AFFECTED_PROJECT_BUILD_TYPES = "{\"buildType\":["
+            + "{\"id\":\"" + PROD + "\",\"name\":\"Deploy\",\"projectId\":\"MyProject\",\"settings\":{\"property\":"
+            + "[{\"name\":\"buildConfigurationType\",\"value\":\"DEPLOYMENT\"}]}},"
+            + "{\"id\":\"MyProject_Build\",\"name\":\"Build\",\"projectId\":\"MyProject\",\"settings\":{}}]}";
+
+    @Mock private RestOperations rest;
+    @Mock private CommitResolver commitResolver;
+    @Mock private PipelineCommitProcessor pipelineCommitProcessor;
+    @Mock private BuildTypeClassificationCache buildTypeCache;
+    @Mock private FinishedBuildCache finishedBuildCache;
+
+    private TeamcitySettings settings;
+    private TeamcityApplication application;
+    private final Environment prod = new Environment(PROD, "prod");
+    private final List<String> urls = new ArrayList<>();
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setBranchMatcher(".*");
+        settings.setPipelineIgnoreMatcher("ignore");
+        settings.setBuildFieldsProjection(true);
+        application = new TeamcityApplication();
+        application.setId(new ObjectId());
+        application.setInstanceUrl(SERVER);
+        application.setApplicationId("MyProject");
+        application.setApplicationName("MyProject");
+        when(commitResolver.resolve(any())).thenReturn(Collections.emptyMap());
+    }
+
+    private DefaultTeamcityClient client() {
+        return new DefaultTeamcityClient(settings, () -> rest, commitResolver, pipelineCommitProcessor,
+                buildTypeCache, finishedBuildCache);
+    }
+
+    @Test
+    public void getBuildReadsAndCachesFinishedBuild() {
+        respond("{\"id\":1234,\"buildTypeId\":\"MyProject_DeployProd\",\"state\":\"finished\",\"status\":\"SUCCESS\","
+                + "\"triggered\":{\"date\":\"20200131T101500+0100\"}}");
+
+        TeamcityBuildRecord build = client().getBuild(SERVER, "1234");
+
+        assertEquals("1234", build.getBuildId());
+        assertEquals("MyProject_DeployProd", build.getBuildTypeId());
+        verify(finishedBuildCache).put(SERVER, build);
+    }
+
+    @Test
+    public void getBuildLeavesRunningBuildToTheNextCollection() {
+        respond("{\"id\":1235,\"buildTypeId\":\"MyProject_DeployProd\",\"state\":\"running\",\"status\":\"SUCCESS\","
+                + "\"triggered\":{\"date\":\"20200131T101500+0100\"}}");
+
+        assertNull(client().getBuild(SERVER, "1235"));
+        verify(finishedBuildCache, never()).put(anyString(), any(TeamcityBuildRecord.class));
+    }
+
+    @Test
+    public void getBuildTakesCachedBuildWithoutRequest() {
+        TeamcityBuildRecord cached = new TeamcityBuildRecord();
+        cached.setBuildId("1234");
+        when(finishedBuildCache.get(SERVER, "1234")).thenReturn(cached);
+
+        assertEquals(cached, client().getBuild(SERVER, "1234"));
+        verify(rest, never()).execute(any(URI.class), any(HttpMethod.class), any(RequestCallback.class),
+                any(ResponseExtractor.class));
+    }
+
+    @Test
+    public void pollsWholeHistoryWithoutWatermark() {
+        respondPages(page(build(1234, PROD, "20200131T101500+0100"), build(1233, PROD, "20200130T101500+0100")));
+
+        List<TeamcityEnvResCompData> deployments = client().getEnvironmentResourceStatusData(application, prod, null);
+
+        assertEquals(Arrays.asList("1234", "1233"), componentIds(deployments));
+        assertEquals(2, urls.size());
+        assertEquals("buildType:MyProject_DeployProd,status:SUCCESS,count:100,branch:default:any", locator(0));
+        // The next page continues below the oldest build read, not at an offset
+        assertEquals("buildType:MyProject_DeployProd,status:SUCCESS,count:100,branch:default:any,untilBuild:(id:1233)",
+                locator(1));
+    }
+
+    @Test
+    public void pollsFromWatermarkLessOverlap() {
+        settings.setWatermarkOverlapMinutes(60);
+        TeamcityBuildWatermark watermark = new TeamcityBuildWatermark(application.getId(), PROD);
+        watermark.advance(1234, TeamcityBuildReader.toMillis("20200131T101500+0000"));
+        respondPages();
+
+        client().getEnvironmentResourceStatusData(application, prod, watermark);
+
+        assertEquals(1, urls.size());
+        assertTrue(locator(0), locator(0).endsWith(",sinceDate:20200131T091500%2B0000"));
+    }
+
+    @Test
+    public void pollsFromLastPollWhenNoBuildWasCollected() {
+        settings.setWatermarkOverlapMinutes(60);
+        TeamcityBuildWatermark watermark = new TeamcityBuildWatermark(application.getId(), PROD);
+        watermark.polled(TeamcityBuildReader.toMillis("20200131T101500+0000"));
+        respondPages();
+
+        client().getEnvironmentResourceStatusData(application, prod, watermark);
+
+        assertTrue(locator(0), locator(0).endsWith(",sinceDate:20200131T091500%2B0000"));
+    }
+
+    @Test
+    public void legacyWatermarkWithoutDatePollsSinceItsBuild() {
+        TeamcityBuildWatermark watermark = new TeamcityBuildWatermark(application.getId(), PROD);
+        watermark.setLastBuildId(1234);
+        respondPages();
+
+        client().getEnvironmentResourceStatusData(application, prod, watermark);
+
+        assertTrue(locator(0), locator(0).endsWith(",sinceBuild:(id:1234)"));
+    }
+
+    @Test
+    public void stopsAtTheLookbackHorizon() {
+        settings.setLookbackDays(30);
+        long now = System.currentTimeMillis();
+        respondPages(page(build(1234, PROD, TeamcityBuildReader.toDate(now - TimeUnit.DAYS.toMillis(1))),
+                build(1233, PROD, TeamcityBuildReader.toDate(now - TimeUnit.DAYS.toMillis(31)))));
+
+        List<TeamcityEnvResCompData> deployments = client().getEnvironmentResourceStatusData(application, prod, null);
+
+        assertEquals(Collections.singletonList("1234"), componentIds(deployments));
+        // A server that ignored sinceDate is not paged any further
+        assertEquals(1, urls.size());
+        assertTrue(locator(0), locator(0).contains(",sinceDate:"));
+    }
+
+    @Test
+    public void latestOnlyTakesTheFirstDeploymentOfTheNewestPage() {
+        settings.setLatestOnly(true);
+        respondPages(page(build(1235, PROD, "20200131T101500+0100").replace("\"Deploy\"", "\"ignore\""),
+                build(1234, PROD, "20200130T101500+0100"), build(1233, PROD, "20200129T101500+0100")));
+
+        List<TeamcityEnvResCompData> deployments = client().getEnvironmentResourceStatusData(application, prod, null);
+
+        // The build of the ignored pipeline is skipped, no further page is read
+        assertEquals(Collections.singletonList("1234"), componentIds(deployments));
+        assertEquals(1, urls.size());
+        assertEquals("buildType:MyProject_DeployProd,status:SUCCESS,count:20,branch:default:any", locator(0));
+        verify(pipelineCommitProcessor).deferPipelineCommits(any(), eq(application), eq("prod"));
+        verify(pipelineCommitProcessor, never()).processPipelineCommits(any(), any(), anyString());
+    }
+
+    @Test
+    public void buildThePageContinuesFromIsNotReadTwice() {
+        respondPages(page(build(1234, PROD, "20200131T101500+0100")),
+                page(build(1234, PROD, "20200131T101500+0100"), build(1230, PROD, "20200129T101500+0100")));
+
+        List<TeamcityEnvResCompData> deployments = client().getEnvironmentResourceStatusData(application, prod, null);
+
+        assertEquals(Arrays.asList("1234", "1230"), componentIds(deployments));
+    }
+
+    @Test
+    public void changeFeedGroupsBuildsByBuildType() {
+        respondPages(page(build(1240, PROD, "20200131T101500+0100"), build(1239, DEV, "20200131T091500+0100")),
+                page(build(1236, PROD, "20200130T101500+0100")));
+
+        Map<String, List<TeamcityBuildRecord>> builds = client().getRecentBuilds(SERVER,
+                TeamcityBuildReader.toMillis("20200129T000000+0000"));
+
+        assertEquals(Arrays.asList("1240", "1236"), buildIds(builds.get(PROD)));
+        assertEquals(Collections.singletonList("1239"), buildIds(builds.get(DEV)));
+        assertEquals(3, urls.size());
+        assertEquals("sinceDate:20200129T000000%2B0000,defaultFilter:false,state:finished,status:SUCCESS,personal:false,"
+                + "branch:default:any,count:500", locator(0));
+        assertTrue(locator(1), locator(1).endsWith(",count:500,untilBuild:(id:1239)"));
+        assertTrue(locator(2), locator(2).endsWith(",count:500,untilBuild:(id:1236)"));
+    }
+
+    @Test
+    public void plainBranchNamesAreMatchedByTeamcity() {
+        assertEquals("branch:(name:main)", DefaultTeamcityClient.branchLocator("main"));
+        assertEquals("branch:(name:release/v2_0-hotfix)", DefaultTeamcityClient.branchLocator("release/v2_0-hotfix"));
+    }
+
+    @Test
+    public void branchPatternsAreMatchedLocally() {
+        for (String matcher : Arrays.asList(".*", "release/.*", "main|develop", "release-1.0", "feature/(a|b)", "", "main ")) {
+            assertEquals(matcher, "branch:default:any", DefaultTeamcityClient.branchLocator(matcher));
+        }
+    }
+
+    @Test
+    public void buildsOfOtherBranchesAreFilteredLocally() {
+        settings.setBranchMatcher("release/.*");
+        respondPages(page(build(1234, PROD, "20200131T101500+0100"),
+                build(1233, PROD, "20200130T101500+0100").replace("\"main\"", "\"release/2.0\"")));
+
+        List<TeamcityEnvResCompData> deployments = client().getEnvironmentResourceStatusData(application, prod, null);
+
+        assertEquals(Collections.singletonList("1233"), componentIds(deployments));
+        assertTrue(locator(0), locator(0).contains(",branch:default:any"));
+    }
+
+    @Test
+    public void branchNameIsSentToTeamcity() {
+        settings.setBranchMatcher("main");
+        respondPages();
+
+        client().getEnvironmentResourceStatusData(application, prod, null);
+
+        assertEquals("buildType:MyProject_DeployProd,status:SUCCESS,count:100,branch:(name:main)", locator(0));
+    }
+
+    @Test
+    public void transientDiscoveryFailureDoesNotDisableTheAffectedProjectLookup() {
+        discoverWithoutCache();
+        when(rest.exchange(anyString(), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class)))
+                .thenThrow(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE))
+                .thenReturn(new ResponseEntity<>(AFFECTED_PROJECT_BUILD_TYPES, HttpStatus.OK));
+        DefaultTeamcityClient client = client();
+
+        try {
+            client.getEnvironments(application);
+            fail("Expected the discovery to fail");
+        } catch (HttpServerErrorException expected) {
+            // nothing discovered, nothing stored
+        }
+        List<Environment> environments = client.getEnvironments(application);
+
+        assertEquals(Collections.singletonList(PROD), environments.stream().map(Environment::getId)
+                .collect(Collectors.toList()));
+        verify(rest, times(2)).exchange(contains("affectedProject"), eq(HttpMethod.GET), any(HttpEntity.class),
+                eq(String.class));
+    }
+
+    @Test
+    public void unreadableDiscoveryResponseFailsTheDiscovery() {
+        discoverWithoutCache();
+        when(rest.exchange(anyString(), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class)))
+                .thenReturn(new ResponseEntity<>("<html>proxy error</html>", HttpStatus.OK))
+                .thenReturn(new ResponseEntity<>(AFFECTED_PROJECT_BUILD_TYPES, HttpStatus.OK));
+        DefaultTeamcityClient client = client();
+
+        try {
+            client.getEnvironments(application);
+            fail("Expected the discovery to fail");
+        } catch (HttpMessageNotReadableException expected) {
+            // nothing discovered, nothing stored
+        }
+
+        assertEquals(1, client.getEnvironments(application).size());
+        verify(rest, times(2)).exchange(contains("affectedProject"), eq(HttpMethod.GET), any(HttpEntity.class),
+                eq(String.class));
+    }
+
+    @Test
+    public void rejectedAffectedProjectLookupFallsBackToTheProjectTree() {
+        discoverWithoutCache();
+        when(rest.exchange(contains("affectedProject"), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class)))
+                .thenThrow(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+        when(rest.exchange(endsWith("/app/rest/projects/id:MyProject"), eq(HttpMethod.GET), any(HttpEntity.class),
+                eq(String.class))).thenReturn(new ResponseEntity<>(
+                "{\"projects\":{\"project\":[]},\"buildTypes\":{\"buildType\":[{\"id\":\"" + PROD + "\"}]}}", HttpStatus.OK));
+        when(rest.exchange(endsWith("/app/rest/buildTypes/id:" + PROD), eq(HttpMethod.GET), any(HttpEntity.class),
+                eq(String.class))).thenReturn(new ResponseEntity<>("{\"id\":\"" + PROD + "\",\"name\":\"Deploy\","
+                + "\"settings\":{\"property\":[{\"name\":\"buildConfigurationType\",\"value\":\"DEPLOYMENT\"}]}}",
+                HttpStatus.OK));
+        DefaultTeamcityClient client = client();
+
+        assertEquals(1, client.getEnvironments(application).size());
+        assertEquals(1, client.getEnvironments(application).size());
+
+        // The server does not support the lookup, it is not asked again
+        verify(rest, times(1)).exchange(contains("affectedProject"), eq(HttpMethod.GET), any(HttpEntity.class),
+                eq(String.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void discoverWithoutCache() {
+        settings.setAffectedProjectDiscovery(true);
+        when(buildTypeCache.getBuildTypes(eq(SERVER), eq("MyProject"), any(Supplier.class)))
+                .thenAnswer(invocation -> ((Supplier<List<TeamcityBuildType>>) invocation.getArguments()[2]).get());
+    }
+
+    private void respond(String body) {
+        respond(url -> body);
+    }
+
+    /**
+     * Answers listings with the given pages in turn, then with empty pages.
+     */
+    private void respondPages(String... pages) {
+        Iterator<String> next = Arrays.asList(pages).iterator();
+        respond(url -> next.hasNext() ? next.next() : page());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void respond(Function<String, String> body) {
+        when(rest.execute(any(URI.class), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+                .thenAnswer(invocation -> {
+                    String url = invocation.getArguments()[0].toString();
+                    urls.add(url);
+                    return ((ResponseExtractor<Object>) invocation.getArguments()[3]).extractData(new MockClientHttpResponse(
+                            body.apply(url).getBytes(StandardCharsets.UTF_8), HttpStatus.OK));
+                });
+    }
+
+    private String locator(int request) {
+        return StringUtils.substringBetween(urls.get(request), "?locator=", "&fields=");
+    }
+
+    private static String page(String... builds) {
+        return "{\"count\":" + builds.length + ",\"build\":[" + String.join(",", builds) + "]}";
+    }
+
+    private static String build(long id, String buildTypeId, String triggered) {
+        return "{\"id\":" + id + ",\"buildTypeId\":\"" + buildTypeId + "\",\"status\":\"SUCCESS\",\"state\":\"finished\","
+                + "\"branchName\":\"main\",\"buildType\":{\"name\":\"Deploy\"},\"triggered\":{\"date\":\"" + triggered + "\"}}";
+    }
+
+    private static List<String> componentIds(List<TeamcityEnvResCompData> deployments) {
+        return deployments.stream().map(TeamcityEnvResCompData::getComponentID).collect(Collectors.toList());
+    }
+
+    private static List<String> buildIds(List<TeamcityBuildRecord> builds) {
+        return builds.stream().map(TeamcityBuildRecord::getBuildId).collect(Collectors.toList());
+    }
+}
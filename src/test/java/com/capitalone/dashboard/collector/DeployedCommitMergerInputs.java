@@ -0,0 +1,46 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.PipelineCommit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Randomized merge inputs shared by {@link DeployedCommitMergerTest} and the JMH benchmark in src/jmh.
+ * Every 20th commit is deployed, nine tenths of them already in the environment stage.
+ */
+class DeployedCommitMergerInputs {
+    final List<PipelineCommit> commitStage = new ArrayList<>();
+    final List<PipelineCommit> existing = new ArrayList<>();
+    final List<PipelineCommit> deployed = new ArrayList<>();
+
+    /**
+     * @param commits          size of the commit stage, shuffled
+     * @param commitsPerMinute commits sharing a commit time, more than one gives ordering ties
+     * @param seed             seed of the revisions and the shuffle
+     */
+    DeployedCommitMergerInputs(int commits, int commitsPerMinute, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < commits; i++) {
+            PipelineCommit commit = new PipelineCommit(0);
+            commit.setScmRevisionNumber(Long.toHexString(random.nextLong()) + i);
+            commit.setScmCommitTimestamp(1_500_000_000_000L + i / commitsPerMinute * 60_000L);
+            commit.setScmAuthor("author" + i % 50);
+            commit.setScmCommitLog("Commit " + i);
+            commit.setScmParentRevisionNumbers(Collections.singletonList("parent" + i));
+            commitStage.add(commit);
+        }
+        List<PipelineCommit> oldestFirst = new ArrayList<>(commitStage);
+        oldestFirst.sort(Comparator.comparingLong(PipelineCommit::getScmCommitTimestamp));
+        Collections.shuffle(commitStage, random);
+
+        for (int i = 0; i < commits; i += 20) {
+            PipelineCommit commit = oldestFirst.get(i);
+            PipelineCommit deployment = new PipelineCommit(commit, commit.getScmCommitTimestamp() + 3_600_000L);
+            (i < commits * 9 / 10 ? existing : deployed).add(deployment);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.PipelineCommit;
+import com.capitalone.dashboard.model.SCM;
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeployedCommitMergerTest {
+
+    @Test
+    public void mergeMatchesFormerImplementation() {
+        assertSameAsBaseline(new DeployedCommitMergerInputs(2000, 1, 42));
+    }
+
+    @Test
+    public void mergeMatchesFormerImplementationWithOrderingTies() {
+        assertSameAsBaseline(new DeployedCommitMergerInputs(2000, 7, 43));
+    }
+
+    @Test
+    public void mergeMatchesFormerImplementationWithDuplicates() {
+        DeployedCommitMergerInputs inputs = new DeployedCommitMergerInputs(2000, 3, 44);
+        // Deployed again later, the commit already in the environment stage wins
+        for (int i = 0; i < inputs.existing.size(); i += 5) {
+            PipelineCommit commit = inputs.existing.get(i);
+            inputs.deployed.add(new PipelineCommit(commit, commit.getTimestamp() + 60_000L));
+        }
+        // Deployed twice in the same run, the first one wins
+        int deployed = inputs.deployed.size();
+        for (int i = 0; i < deployed; i += 3) {
+            PipelineCommit commit = inputs.deployed.get(i);
+            inputs.deployed.add(new PipelineCommit(commit, commit.getTimestamp() - 60_000L));
+        }
+        assertSameAsBaseline(inputs);
+    }
+
+    @Test
+    public void mergeMatchesFormerImplementationWithDeploymentsOutOfOrder() {
+        DeployedCommitMergerInputs inputs = new DeployedCommitMergerInputs(2000, 1, 45);
+        // Older commits redeployed after newer ones, e.g. a rollback
+        for (int i = 0; i < inputs.existing.size(); i += 4) {
+            PipelineCommit commit = inputs.existing.get(i);
+            inputs.existing.set(i, new PipelineCommit(commit, commit.getTimestamp() + 86_400_000L));
+        }
+        assertSameAsBaseline(inputs);
+    }
+
+    private static void assertSameAsBaseline(DeployedCommitMergerInputs inputs) {
+        Set<PipelineCommit> existing = new LinkedHashSet<>(inputs.existing);
+        List<PipelineCommit> sorted = new DeployedCommitMerger().putCommitStage(null, inputs.commitStage);
+
+        Set<PipelineCommit> expected = baseline(inputs.commitStage, existing, inputs.deployed);
+        Set<PipelineCommit> actual = DeployedCommitMerger.merge(sorted, existing, inputs.deployed);
+
+        Gson gson = new Gson();
+        assertEquals(gson.toJson(new ArrayList<>(expected)), gson.toJson(new ArrayList<>(actual)));
+    }
+
+    /**
+     * The merge as it was before {@link DeployedCommitMerger}.
+     */
+    private static Set<PipelineCommit> baseline(Collection<PipelineCommit> commitStage, Collection<PipelineCommit> existing,
+                                                List<PipelineCommit> commitsOfDeploymentStage) {
+        List<PipelineCommit> pipelineCommitsOfCommitsStage = new ArrayList<>(commitStage);
+        pipelineCommitsOfCommitsStage.sort(Comparator.comparing(PipelineCommit::getScmCommitTimestamp).reversed());
+
+        Set<PipelineCommit> deploymentStageCommits = new HashSet<>();
+        deploymentStageCommits.addAll(existing);
+        deploymentStageCommits.addAll(commitsOfDeploymentStage);
+        Map<String, PipelineCommit> deployedCommitsBySha = deploymentStageCommits.stream()
+                .collect(Collectors.toMap(SCM::getScmRevisionNumber, x -> x));
+
+        List<PipelineCommit> finalSetOfDeployedCommits = new ArrayList<>();
+        long timestamp = 0;
+        for (PipelineCommit commit : pipelineCommitsOfCommitsStage) {
+            if (deployedCommitsBySha.containsKey(commit.getScmRevisionNumber())) {
+                PipelineCommit builtPipelineCommit = deployedCommitsBySha.get(commit.getScmRevisionNumber());
+                finalSetOfDeployedCommits.add(builtPipelineCommit);
+                timestamp = builtPipelineCommit.getTimestamp();
+            } else {
+                if (timestamp == 0) {
+                    continue;
+                }
+                Gson gson = new Gson();
+                PipelineCommit pipelineCommit = gson.fromJson(gson.toJson(commit), PipelineCommit.class);
+                pipelineCommit.setTimestamp(timestamp);
+                finalSetOfDeployedCommits.add(pipelineCommit);
+            }
+        }
+        finalSetOfDeployedCommits.sort(Comparator.comparing(PipelineCommit::getTimestamp).reversed());
+        return new LinkedHashSet<>(finalSetOfDeployedCommits);
+    }
+}
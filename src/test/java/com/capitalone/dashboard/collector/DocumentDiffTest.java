@@ -0,0 +1,141 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.EnvironmentComponent;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentDiffTest {
+
+    @Test
+    public void unchangedDocumentsAreNotWritten() {
+        DocumentDiff<EnvironmentComponent> diff = compute(
+                Arrays.asList(stored("dev", "1", 100), stored("prod", "1", 100)),
+                Arrays.asList(collected("dev", "1", 100), collected("prod", "1", 100)));
+
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void changedDocumentReplacesStoredOne() {
+        EnvironmentComponent stored = stored("dev", "1", 100);
+        EnvironmentComponent collected = collected("dev", "1", 200);
+
+        DocumentDiff<EnvironmentComponent> diff = compute(Collections.singletonList(stored),
+                Collections.singletonList(collected));
+
+        assertEquals(Collections.singletonList(collected), diff.getUpdates());
+        assertEquals(stored.getId(), collected.getId());
+        assertTrue(diff.getInserts().isEmpty());
+        assertTrue(diff.getDeletes().isEmpty());
+    }
+
+    @Test
+    public void newDocumentIsInsertedWithoutId() {
+        EnvironmentComponent collected = collected("dev", "2", 200);
+
+        DocumentDiff<EnvironmentComponent> diff = compute(Collections.singletonList(stored("dev", "1", 100)),
+                Arrays.asList(collected("dev", "1", 100), collected));
+
+        assertEquals(Collections.singletonList(collected), diff.getInserts());
+        assertNull(collected.getId());
+        assertTrue(diff.getUpdates().isEmpty());
+        assertTrue(diff.getDeletes().isEmpty());
+    }
+
+    @Test
+    public void lastCollectedDocumentOfAKeyWins() {
+        EnvironmentComponent last = collected("dev", "1", 300);
+
+        DocumentDiff<EnvironmentComponent> diff = compute(Collections.emptyList(),
+                Arrays.asList(collected("dev", "1", 200), last));
+
+        assertEquals(Collections.singletonList(last), diff.getInserts());
+    }
+
+    @Test
+    public void storedDocumentsNotCollectedAgainAreDeleted() {
+        EnvironmentComponent gone = stored("dev", "1", 100);
+
+        DocumentDiff<EnvironmentComponent> diff = compute(Arrays.asList(gone, stored("dev", "2", 100)),
+                Collections.singletonList(collected("dev", "2", 100)));
+
+        assertEquals(Collections.singletonList(gone), diff.getDeletes());
+    }
+
+    @Test
+    public void duplicateStoredDocumentsAreDeleted() {
+        EnvironmentComponent first = stored("dev", "1", 100);
+        EnvironmentComponent duplicate = stored("dev", "1", 100);
+
+        DocumentDiff<EnvironmentComponent> diff = compute(Arrays.asList(first, duplicate),
+                Collections.singletonList(collected("dev", "1", 100)));
+
+        assertEquals(1, diff.getDeletes().size());
+        assertSame(duplicate, diff.getDeletes().get(0));
+        assertTrue(diff.getUpdates().isEmpty());
+    }
+
+    @Test
+    public void retainedDocumentsAreKept() {
+        EnvironmentComponent otherEnvironment = stored("prod", "1", 100);
+        EnvironmentComponent gone = stored("dev", "1", 100);
+
+        DocumentDiff<EnvironmentComponent> diff = DocumentDiff.compute(Arrays.asList(otherEnvironment, gone),
+                Collections.singletonList(collected("dev", "2", 200)), DocumentDiffTest::key, DocumentDiffTest::changed,
+                c -> "prod".equals(c.getEnvironmentName()));
+
+        assertEquals(Collections.singletonList(gone), diff.getDeletes());
+        assertEquals(1, diff.getInserts().size());
+    }
+
+    @Test
+    public void documentsBeyondTheHorizonAreKept() {
+        long horizon = 1000;
+        EnvironmentComponent old = stored("dev", "1", horizon - 1);
+        EnvironmentComponent recent = stored("dev", "2", horizon + 1);
+
+        DocumentDiff<EnvironmentComponent> diff = DocumentDiff.compute(Arrays.asList(old, recent),
+                Collections.singletonList(collected("dev", "3", horizon + 2)), DocumentDiffTest::key,
+                DocumentDiffTest::changed, c -> c.getAsOfDate() < horizon);
+
+        assertEquals(Collections.singletonList("2"), diff.getDeletes().stream()
+                .map(EnvironmentComponent::getComponentID).collect(Collectors.toList()));
+    }
+
+    private static DocumentDiff<EnvironmentComponent> compute(List<EnvironmentComponent> existing,
+                                                              List<EnvironmentComponent> proposed) {
+        return DocumentDiff.compute(existing, proposed, DocumentDiffTest::key, DocumentDiffTest::changed, c -> false);
+    }
+
+    private static String key(EnvironmentComponent component) {
+        return component.getEnvironmentName() + '|' + component.getComponentID();
+    }
+
+    private static boolean changed(EnvironmentComponent component, EnvironmentComponent existing) {
+        return component.getAsOfDate() != existing.getAsOfDate();
+    }
+
+    private static EnvironmentComponent stored(String environmentName, String buildId, long asOfDate) {
+        EnvironmentComponent component = collected(environmentName, buildId, asOfDate);
+        component.setId(new ObjectId());
+        return component;
+    }
+
+    private static EnvironmentComponent collected(String environmentName, String buildId, long asOfDate) {
+        EnvironmentComponent component = new EnvironmentComponent();
+        component.setEnvironmentName(environmentName);
+        component.setComponentID(buildId);
+        component.setAsOfDate(asOfDate);
+        return component;
+    }
+}
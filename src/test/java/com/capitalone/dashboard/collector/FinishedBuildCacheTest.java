@@ -0,0 +1,121 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.TeamcityBuildRecord;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FinishedBuildCacheTest {
+    private static final String SERVER = "http://teamcity.example.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TeamcitySettings settings;
+    private File file;
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setBuildCacheSize(3);
+        file = new File(folder.getRoot(), "builds.json");
+        settings.setBuildCacheFile(file.getPath());
+    }
+
+    @Test
+    public void savedBuildsAreLoadedAgain() {
+        FinishedBuildCache cache = new FinishedBuildCache(settings);
+        cache.put(SERVER, build("1234"));
+        cache.flush();
+
+        FinishedBuildCache restarted = new FinishedBuildCache(settings);
+        restarted.load();
+
+        TeamcityBuildRecord build = restarted.get(SERVER, "1234");
+        assertEquals("1234", build.getBuildId());
+        assertEquals("MyProject_DeployProd", build.getBuildTypeId());
+        assertNull(restarted.get("http://other.example.com", "1234"));
+        assertFalse(new File(folder.getRoot(), "builds.json.tmp").exists());
+    }
+
+    @Test
+    public void leastRecentlyUsedBuildIsEvicted() {
+        FinishedBuildCache cache = new FinishedBuildCache(settings);
+        cache.put(SERVER, build("1"));
+        cache.put(SERVER, build("2"));
+        cache.put(SERVER, build("3"));
+        cache.get(SERVER, "1");
+
+        cache.put(SERVER, build("4"));
+
+        assertNotNull(cache.get(SERVER, "1"));
+        assertNull(cache.get(SERVER, "2"));
+        assertNotNull(cache.get(SERVER, "3"));
+        assertNotNull(cache.get(SERVER, "4"));
+    }
+
+    @Test
+    public void unchangedCacheIsNotWritten() {
+        FinishedBuildCache cache = new FinishedBuildCache(settings);
+
+        cache.flush();
+
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void nothingIsWrittenWithoutFile() {
+        settings.setBuildCacheFile("");
+        FinishedBuildCache cache = new FinishedBuildCache(settings);
+        cache.put(SERVER, build("1234"));
+
+        cache.flush();
+
+        assertEquals(0, folder.getRoot().list().length);
+        assertNotNull(cache.get(SERVER, "1234"));
+    }
+
+    @Test
+    public void unreadableCacheIsIgnored() throws IOException {
+        Files.write(file.toPath(), "{not json".getBytes(StandardCharsets.UTF_8));
+
+        FinishedBuildCache cache = new FinishedBuildCache(settings);
+        cache.load();
+
+        assertNull(cache.get(SERVER, "1234"));
+        cache.put(SERVER, build("1234"));
+        cache.flush();
+        assertTrue(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).contains("1234"));
+    }
+
+    @Test
+    public void disabledCacheKeepsNothing() {
+        settings.setBuildCacheSize(0);
+        FinishedBuildCache cache = new FinishedBuildCache(settings);
+
+        cache.put(SERVER, build("1234"));
+
+        assertNull(cache.get(SERVER, "1234"));
+    }
+
+    private static TeamcityBuildRecord build(String buildId) {
+        TeamcityBuildRecord build = new TeamcityBuildRecord();
+        build.setBuildId(buildId);
+        build.setBuildTypeId("MyProject_DeployProd");
+        build.setState("finished");
+        build.setStatus("SUCCESS");
+        return build;
+    }
+}
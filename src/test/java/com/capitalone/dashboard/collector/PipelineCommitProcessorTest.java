@@ -0,0 +1,117 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.PipelineCommit;
+import com.capitalone.dashboard.model.TeamcityApplication;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PipelineCommitProcessorTest {
+    @Mock private PipelineStageStore pipelineStageStore;
+    @Mock private DashboardResolver dashboardResolver;
+
+    private TeamcitySettings settings;
+    private TeamcityApplication application;
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setLatestOnly(true);
+        settings.setLatestOnlyPipelineIntervalMinutes(60);
+        application = new TeamcityApplication();
+        application.setId(new ObjectId());
+        application.setCollectorId(new ObjectId());
+        application.setApplicationId("MyProject");
+        // Every merge looks up the dashboards of the application first
+        when(dashboardResolver.getDashboardIds(any(ObjectId.class), anyString())).thenReturn(Collections.emptyList());
+    }
+
+    @Test
+    public void firstDeploymentIsMergedRightAway() {
+        PipelineCommitProcessor processor = new PipelineCommitProcessor(pipelineStageStore, dashboardResolver, settings);
+
+        processor.deferPipelineCommits(commits("a"), application, "prod");
+
+        verify(dashboardResolver).getDashboardIds(application.getCollectorId(), "MyProject");
+    }
+
+    @Test
+    public void deploymentsWithinTheIntervalWaitUntilItPassed() {
+        PipelineCommitProcessor processor = new PipelineCommitProcessor(pipelineStageStore, dashboardResolver, settings);
+        processor.deferPipelineCommits(commits("a"), application, "prod");
+
+        processor.deferPipelineCommits(commits("b"), application, "prod");
+        processor.mergeDeferredPipelineCommits(Collections.singleton(application.getId()));
+
+        verify(dashboardResolver, times(1)).getDashboardIds(any(ObjectId.class), anyString());
+    }
+
+    @Test
+    public void deferredCommitsAreMergedWhenTheCollectorStops() {
+        PipelineCommitProcessor processor = new PipelineCommitProcessor(pipelineStageStore, dashboardResolver, settings);
+        processor.deferPipelineCommits(commits("a"), application, "prod");
+        processor.deferPipelineCommits(commits("b"), application, "prod");
+
+        processor.flushDeferredPipelineCommits();
+        processor.flushDeferredPipelineCommits();
+
+        verify(dashboardResolver, times(2)).getDashboardIds(any(ObjectId.class), anyString());
+    }
+
+    @Test
+    public void deferredCommitsOfDisabledApplicationsAreForgotten() {
+        PipelineCommitProcessor processor = new PipelineCommitProcessor(pipelineStageStore, dashboardResolver, settings);
+        processor.deferPipelineCommits(commits("a"), application, "prod");
+        processor.deferPipelineCommits(commits("b"), application, "prod");
+
+        processor.mergeDeferredPipelineCommits(Collections.emptySet());
+        processor.flushDeferredPipelineCommits();
+
+        verify(dashboardResolver, times(1)).getDashboardIds(any(ObjectId.class), anyString());
+    }
+
+    @Test
+    public void deferredCommitsOfApplicationsNoLongerLatestOnlyAreForgotten() {
+        PipelineCommitProcessor processor = new PipelineCommitProcessor(pipelineStageStore, dashboardResolver, settings);
+        processor.deferPipelineCommits(commits("a"), application, "prod");
+        processor.deferPipelineCommits(commits("b"), application, "prod");
+
+        settings.setLatestOnly(false);
+        processor.mergeDeferredPipelineCommits(Collections.singleton(application.getId()));
+        processor.flushDeferredPipelineCommits();
+
+        verify(dashboardResolver, times(1)).getDashboardIds(any(ObjectId.class), anyString());
+    }
+
+    @Test
+    public void withoutIntervalCommitsAreNeverDeferred() {
+        settings.setLatestOnlyPipelineIntervalMinutes(0);
+        PipelineCommitProcessor processor = new PipelineCommitProcessor(pipelineStageStore, dashboardResolver, settings);
+
+        processor.deferPipelineCommits(commits("a"), application, "prod");
+        processor.deferPipelineCommits(commits("b"), application, "prod");
+        processor.flushDeferredPipelineCommits();
+
+        verify(dashboardResolver, times(2)).getDashboardIds(any(ObjectId.class), anyString());
+    }
+
+    private static List<PipelineCommit> commits(String revision) {
+        PipelineCommit commit = new PipelineCommit();
+        commit.setScmRevisionNumber(revision);
+        commit.setTimestamp(System.currentTimeMillis());
+        return Collections.singletonList(commit);
+    }
+}
@@ -0,0 +1,132 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Pipeline;
+import com.capitalone.dashboard.model.PipelineCommit;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PipelineStageStoreTest {
+    @Mock private MongoTemplate mongoTemplate;
+    @Mock private MongoConverter converter;
+    @Mock private DBCollection pipelines;
+
+    private final ObjectId collectorItemId = new ObjectId();
+    private final Pipeline pipeline = new Pipeline();
+
+    @Before
+    public void init() {
+        pipeline.setId(new ObjectId());
+        when(mongoTemplate.getCollectionName(Pipeline.class)).thenReturn("pipelines");
+        when(mongoTemplate.getCollection("pipelines")).thenReturn(pipelines);
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+    }
+
+    @Test
+    public void readsOnlyTheRequestedStagesAndTheVersion() {
+        DBObject document = new BasicDBObject("collectorItemId", collectorItemId).append(PipelineStageStore.VERSION, 3);
+        when(pipelines.findOne(any(DBObject.class), any(DBObject.class))).thenReturn(document);
+        when(converter.read(Pipeline.class, document)).thenReturn(pipeline);
+
+        PipelineStageStore.Snapshot snapshot = new PipelineStageStore(mongoTemplate).read(collectorItemId, "prod", true);
+
+        assertSame(pipeline, snapshot.getPipeline());
+        assertEquals(3, snapshot.getVersion());
+        ArgumentCaptor<DBObject> fields = ArgumentCaptor.forClass(DBObject.class);
+        verify(pipelines).findOne(eq(new BasicDBObject("collectorItemId", collectorItemId)), fields.capture());
+        assertEquals(new BasicDBObject("collectorItemId", 1).append("environmentStageMap.prod", 1)
+                .append(PipelineStageStore.VERSION, 1).append("environmentStageMap.Commit", 1), fields.getValue());
+    }
+
+    @Test
+    public void documentWithoutVersionIsReadAtVersionZero() {
+        DBObject document = new BasicDBObject("collectorItemId", collectorItemId);
+        when(pipelines.findOne(any(DBObject.class), any(DBObject.class))).thenReturn(document);
+        when(converter.read(Pipeline.class, document)).thenReturn(pipeline);
+
+        assertEquals(0, new PipelineStageStore(mongoTemplate).read(collectorItemId, "prod", false).getVersion());
+    }
+
+    @Test
+    public void missingPipelineIsNotRead() {
+        assertNull(new PipelineStageStore(mongoTemplate).read(collectorItemId, "prod", false));
+    }
+
+    @Test
+    public void firstWriteRequiresTheVersionToBeAbsent() {
+        respond(1);
+
+        assertTrue(new PipelineStageStore(mongoTemplate).writeCommits(
+                new PipelineStageStore.Snapshot(pipeline, 0), "prod", Collections.emptyList()));
+
+        DBObject query = query();
+        assertEquals(pipeline.getId(), query.get("_id"));
+        assertEquals(new BasicDBObject("$exists", false), query.get(PipelineStageStore.VERSION));
+        assertEquals(1L, set().get(PipelineStageStore.VERSION));
+    }
+
+    @Test
+    public void writeRequiresTheVersionThatWasRead() {
+        respond(1);
+        List<PipelineCommit> commits = Collections.singletonList(new PipelineCommit());
+
+        assertTrue(new PipelineStageStore(mongoTemplate).writeCommits(
+                new PipelineStageStore.Snapshot(pipeline, 3), "prod", commits));
+
+        assertEquals(3L, query().get(PipelineStageStore.VERSION));
+        DBObject set = set();
+        assertEquals(4L, set.get(PipelineStageStore.VERSION));
+        assertEquals(commits, set.get("environmentStageMap.prod.commits"));
+    }
+
+    @Test
+    public void concurrentChangeFailsTheWrite() {
+        respond(0);
+
+        assertFalse(new PipelineStageStore(mongoTemplate).writeCommits(
+                new PipelineStageStore.Snapshot(pipeline, 3), "prod", Collections.emptyList()));
+    }
+
+    private void respond(int updated) {
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Pipeline.class)))
+                .thenReturn(new WriteResult(updated, true, null));
+    }
+
+    private DBObject query() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).updateFirst(query.capture(), any(Update.class), eq(Pipeline.class));
+        return query.getValue().getQueryObject();
+    }
+
+    private DBObject set() {
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(Pipeline.class));
+        return (DBObject) update.getValue().getUpdateObject().get("$set");
+    }
+}
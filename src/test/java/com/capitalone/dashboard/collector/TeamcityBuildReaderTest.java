@@ -0,0 +1,116 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.TeamcityBuildRecord;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TeamcityBuildReaderTest {
+
+    @Test
+    public void readsCapturedBuildsPage() throws IOException {
+        List<TeamcityBuildRecord> builds = readPage();
+
+        assertEquals(4, builds.size());
+        TeamcityBuildRecord build = builds.get(0);
+        assertEquals("1234", build.getBuildId());
+        assertEquals("MyProject_DeployProd", build.getBuildTypeId());
+        assertEquals("Deploy to Prod", build.getBuildTypeName());
+        assertEquals("SUCCESS", build.getStatus());
+        assertEquals("finished", build.getState());
+        assertTrue(build.isFinished());
+        assertEquals("main", build.getBranchName());
+        assertEquals(1580462100000L, build.getTriggeredDate());
+        assertEquals("8f3c2d1e9a7b6c5d4e3f2a1b0c9d8e7f6a5b4c3d", build.getRevision());
+    }
+
+    @Test
+    public void readsNullBranchName() throws IOException {
+        assertNull(readPage().get(1).getBranchName());
+    }
+
+    @Test
+    public void takesFirstOfMultipleRevisions() throws IOException {
+        assertEquals("1111111111111111111111111111111111111111", readPage().get(1).getRevision());
+    }
+
+    @Test
+    public void readsBuildWithoutRevisions() throws IOException {
+        TeamcityBuildRecord build = readPage().get(2);
+
+        assertEquals("1232", build.getBuildId());
+        assertNull(build.getRevision());
+        assertNull(build.getBranchName());
+        assertEquals(1580284800000L, build.getTriggeredDate());
+    }
+
+    @Test
+    public void readsUnfinishedBuildWithEmptyRevisions() throws IOException {
+        TeamcityBuildRecord build = readPage().get(3);
+
+        assertEquals("running", build.getState());
+        assertFalse(build.isFinished());
+        assertNull(build.getRevision());
+        assertEquals("feature/login", build.getBranchName());
+    }
+
+    @Test
+    public void takesKnownBuildsWithoutReadingThem() throws IOException {
+        TeamcityBuildRecord known = new TeamcityBuildRecord();
+        known.setBuildId("1233");
+
+        List<TeamcityBuildRecord> builds;
+        try (InputStream page = getClass().getResourceAsStream("teamcityBuilds_page.json")) {
+            builds = TeamcityBuildReader.readBuilds(page, id -> "1233".equals(id) ? known : null);
+        }
+
+        assertEquals(4, builds.size());
+        assertSame(known, builds.get(1));
+        assertEquals("1232", builds.get(2).getBuildId());
+        assertEquals(1580284800000L, builds.get(2).getTriggeredDate());
+    }
+
+    @Test
+    public void readsSingleBuild() throws IOException {
+        String json = "{\"id\":99,\"state\":\"finished\",\"status\":\"SUCCESS\",\"branchName\":null,"
+                + "\"triggered\":{\"date\":\"20200101T000000+0000\"}}";
+
+        TeamcityBuildRecord build = TeamcityBuildReader.readBuild(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("99", build.getBuildId());
+        assertNull(build.getBranchName());
+        assertEquals(1577836800000L, build.getTriggeredDate());
+    }
+
+    @Test
+    public void readsEmptyBodyAsNoBuild() throws IOException {
+        assertNull(TeamcityBuildReader.readBuild(new ByteArrayInputStream(new byte[0])));
+        assertTrue(TeamcityBuildReader.readBuilds(new ByteArrayInputStream(new byte[0])).isEmpty());
+    }
+
+    @Test
+    public void convertsTeamcityDates() {
+        assertEquals(1580462100000L, TeamcityBuildReader.toMillis("20200131T101500+0100"));
+        assertEquals(1580445900000L, TeamcityBuildReader.toMillis("20200130T234500-0500"));
+        assertEquals(1580193000000L, TeamcityBuildReader.toMillis("20200128T120000+0530"));
+        assertEquals("20200131T091500+0000", TeamcityBuildReader.toDate(1580462100000L));
+        assertEquals(1580462100000L, TeamcityBuildReader.toMillis(TeamcityBuildReader.toDate(1580462100000L)));
+    }
+
+    private List<TeamcityBuildRecord> readPage() throws IOException {
+        try (InputStream page = getClass().getResourceAsStream("teamcityBuilds_page.json")) {
+            return TeamcityBuildReader.readBuilds(page);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.Component;
+import com.capitalone.dashboard.model.Environment;
+import com.capitalone.dashboard.model.EnvironmentComponent;
+import com.capitalone.dashboard.model.EnvironmentStatus;
+import com.capitalone.dashboard.model.TeamcityApplication;
+import com.capitalone.dashboard.model.TeamcityBuildRecord;
+import com.capitalone.dashboard.model.TeamcityBuildWatermark;
+import com.capitalone.dashboard.model.TeamcityCollector;
+import com.capitalone.dashboard.model.TeamcityEnvResCompData;
+import com.capitalone.dashboard.repository.ConfigurationRepository;
+import com.capitalone.dashboard.repository.EnvironmentComponentRepository;
+import com.capitalone.dashboard.repository.EnvironmentStatusRepository;
+import com.capitalone.dashboard.repository.TeamcityApplicationRepository;
+import com.capitalone.dashboard.repository.TeamcityBuildTypeRepository;
+import com.capitalone.dashboard.repository.TeamcityBuildWatermarkRepository;
+import com.capitalone.dashboard.repository.TeamcityCollectorRepository;
+import com.mongodb.DBCollection;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TeamcityCollectorTaskTest {
+    private static final String SERVER = "http://teamcity.example.com";
+
+    @Mock private TaskScheduler taskScheduler;
+    @Mock private TeamcityCollectorRepository collectorRepository;
+    @Mock private TeamcityApplicationRepository applicationRepository;
+    @Mock private EnvironmentComponentRepository componentRepository;
+    @Mock private EnvironmentStatusRepository statusRepository;
+    @Mock private TeamcityClient teamcityClient;
+    @Mock private ConfigurationRepository configurationRepository;
+    @Mock private MongoTemplate mongoTemplate;
+    @Mock private DBCollection components;
+    @Mock private TeamcityBuildWatermarkRepository watermarkRepository;
+    @Mock private TeamcityBuildTypeRepository buildTypeRepository;
+    @Mock private FinishedBuildCache finishedBuildCache;
+    @Mock private RestOperationsSupplier restOperationsSupplier;
+    @Mock private BulkWriter bulkWriter;
+    @Mock private PipelineCommitProcessor pipelineCommitProcessor;
+
+    private TeamcitySettings settings;
+    private TeamcityCollector collector;
+    private TeamcityApplication application;
+    private final Environment dev = new Environment("MyProject_DeployDev", "dev");
+    private final Environment prod = new Environment("MyProject_DeployProd", "prod");
+
+    @Before
+    public void init() {
+        settings = new TeamcitySettings();
+        settings.setPipelineIgnoreMatcher("ignore");
+
+        collector = TeamcityCollector.prototype(Collections.singletonList(SERVER), Collections.emptyList());
+        collector.setId(new ObjectId());
+        application = new TeamcityApplication();
+        application.setId(new ObjectId());
+        application.setCollectorId(collector.getId());
+        application.setInstanceUrl(SERVER);
+        application.setApplicationId("MyProject");
+        application.setApplicationName("MyProject");
+        application.setEnabled(true);
+
+        when(applicationRepository.findByCollectorIdIn(any())).thenReturn(Collections.singletonList(application));
+        when(mongoTemplate.getCollectionName(Component.class)).thenReturn("components");
+        when(mongoTemplate.getCollection("components")).thenReturn(components);
+        when(components.distinct(anyString())).thenReturn(Collections.singletonList(application.getId()));
+        when(teamcityClient.getApplications(SERVER)).thenReturn(Collections.emptyList());
+        when(teamcityClient.getEnvironments(application)).thenReturn(Arrays.asList(dev, prod));
+        when(watermarkRepository.findByCollectorItemId(application.getId())).thenReturn(Collections.emptyList());
+    }
+
+    private TeamcityCollectorTask task() {
+        return new TeamcityCollectorTask(taskScheduler, collectorRepository, applicationRepository, componentRepository,
+                statusRepository, settings, teamcityClient, configurationRepository, mongoTemplate, watermarkRepository,
+                buildTypeRepository, finishedBuildCache, restOperationsSupplier, bulkWriter, pipelineCommitProcessor);
+    }
+
+    @Test
+    public void failedEnvironmentKeepsItsStoredDataAndWatermark() {
+        when(componentRepository.findByCollectorItemId(application.getId()))
+                .thenReturn(Arrays.asList(storedComponent("dev", "100"), storedComponent("prod", "200")));
+        when(statusRepository.findByCollectorItemId(application.getId()))
+                .thenReturn(Arrays.asList(storedStatus("dev", "100"), storedStatus("prod", "200")));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, dev, null))
+                .thenReturn(Collections.singletonList(deployment("dev", "101")));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, prod, null))
+                .thenThrow(new HttpClientErrorException(HttpStatus.NOT_FOUND));
+
+        task().collect(collector);
+
+        List<EnvironmentComponent> deletes = deletes(EnvironmentComponent.class);
+        assertEquals(Collections.singletonList("dev|100"), deletes.stream()
+                .map(c -> c.getEnvironmentName() + '|' + c.getComponentID()).collect(Collectors.toList()));
+        List<EnvironmentStatus> statusDeletes = deletes(EnvironmentStatus.class);
+        assertEquals(Collections.singletonList("dev|100"), statusDeletes.stream()
+                .map(s -> s.getEnvironmentName() + '|' + s.getComponentID()).collect(Collectors.toList()));
+        List<TeamcityBuildWatermark> watermarks = savedWatermarks();
+        assertEquals(1, watermarks.size());
+        assertEquals(dev.getId(), watermarks.get(0).getEnvironmentId());
+        assertEquals(101, watermarks.get(0).getLastBuildId());
+    }
+
+    @Test
+    public void failedEnvironmentDoesNotMoveAnExistingWatermark() {
+        TeamcityBuildWatermark prodWatermark = new TeamcityBuildWatermark(application.getId(), prod.getId());
+        prodWatermark.advance(200, 1000);
+        when(watermarkRepository.findByCollectorItemId(application.getId()))
+                .thenReturn(Collections.singletonList(prodWatermark));
+        when(componentRepository.findByCollectorItemId(application.getId()))
+                .thenReturn(Collections.singletonList(storedComponent("prod", "200")));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, dev, null))
+                .thenReturn(Collections.singletonList(deployment("dev", "101")));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, prod, prodWatermark))
+                .thenThrow(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+
+        task().collect(collector);
+
+        assertTrue(deletes(EnvironmentComponent.class).isEmpty());
+        assertEquals(200, prodWatermark.getLastBuildId());
+        for (TeamcityBuildWatermark watermark : savedWatermarks()) {
+            assertEquals(dev.getId(), watermark.getEnvironmentId());
+        }
+    }
+
+    @Test
+    public void fullPollKeepsDeploymentsBeyondTheLookbackHorizon() {
+        settings.setLookbackDays(30);
+        EnvironmentComponent old = storedComponent("dev", "50");
+        old.setAsOfDate(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31));
+        when(componentRepository.findByCollectorItemId(application.getId()))
+                .thenReturn(Arrays.asList(old, storedComponent("dev", "100")));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, dev, null))
+                .thenReturn(Collections.singletonList(deployment("dev", "101")));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, prod, null))
+                .thenReturn(Collections.emptyList());
+
+        task().collect(collector);
+
+        assertEquals(Collections.singletonList("100"), deletes(EnvironmentComponent.class).stream()
+                .map(EnvironmentComponent::getComponentID).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void latestOnlyKeepsOnlyTheLatestDeployment() {
+        settings.setLatestOnly(true);
+        settings.setLookbackDays(30);
+        EnvironmentComponent old = storedComponent("dev", "50");
+        old.setAsOfDate(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31));
+        when(componentRepository.findByCollectorItemId(application.getId()))
+                .thenReturn(Arrays.asList(old, storedComponent("dev", "100"), storedComponent("prod", "200")));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, dev, null))
+                .thenReturn(Collections.singletonList(deployment("dev", "101")));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, prod, null))
+                .thenReturn(Collections.emptyList());
+
+        task().collect(collector);
+
+        // prod has no new deployment and keeps its latest one
+        assertEquals(Arrays.asList("dev|100", "dev|50"), deletes(EnvironmentComponent.class).stream()
+                .map(c -> c.getEnvironmentName() + '|' + c.getComponentID()).sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void failedApplicationDoesNotStopTheOthersButFailsTheServer() {
+        settings.setApplicationParallelism(2);
+        settings.setChangeFeed(true);
+        TeamcityApplication broken = new TeamcityApplication();
+        broken.setId(new ObjectId());
+        broken.setCollectorId(collector.getId());
+        broken.setInstanceUrl(SERVER);
+        broken.setApplicationId("Broken");
+        broken.setApplicationName("Broken");
+        broken.setEnabled(true);
+        when(applicationRepository.findByCollectorIdIn(any())).thenReturn(Arrays.asList(broken, application));
+        when(components.distinct(anyString())).thenReturn(Arrays.asList(broken.getId(), application.getId()));
+        when(teamcityClient.getEnvironments(broken)).thenThrow(new HttpClientErrorException(HttpStatus.FORBIDDEN));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, dev, null))
+                .thenReturn(Collections.singletonList(deployment("dev", "101")));
+        when(teamcityClient.getEnvironmentResourceStatusData(application, prod, null))
+                .thenReturn(Collections.emptyList());
+        TeamcityCollectorTask task = task();
+
+        task.collect(collector);
+        task.collect(collector);
+
+        verify(bulkWriter, times(2)).write(eq(EnvironmentComponent.class), any(), any());
+        // The failure reaches the server, which then has no successful cycle to read the change feed from
+        verify(teamcityClient, never()).getRecentBuilds(anyString(), anyLong());
+    }
+
+    @Test
+    public void notifiedBuildOfEnvironmentWithoutWatermarkDoesNotPollTheHistory() {
+        TeamcityBuildRecord build = build("301");
+        when(collectorRepository.findByName("TeamcityDeployment")).thenReturn(collector);
+        when(applicationRepository.findEnabledApplications(collector.getId(), SERVER))
+                .thenReturn(Collections.singletonList(application));
+        when(teamcityClient.getBuild(SERVER, "301")).thenReturn(build);
+        when(teamcityClient.getEnvironmentResourceStatusData(application, prod, null, Collections.singletonList(build)))
+                .thenReturn(Collections.singletonList(deployment("prod", "301")));
+        when(componentRepository.findByCollectorItemId(application.getId()))
+                .thenReturn(Collections.singletonList(storedComponent("prod", "200")));
+
+        assertTrue(task().collectBuild(SERVER, prod.getId(), "301"));
+
+        verify(teamcityClient, never()).getEnvironmentResourceStatusData(any(TeamcityApplication.class),
+                any(Environment.class), any(TeamcityBuildWatermark.class));
+        assertTrue(deletes(EnvironmentComponent.class).isEmpty());
+        // The first poll of the environment still has to read its history
+        assertTrue(savedWatermarks().isEmpty());
+    }
+
+    @Test
+    public void notifiedBuildWithFullResyncDoesNotPollTheHistory() {
+        settings.setFullResync(true);
+        TeamcityBuildWatermark prodWatermark = new TeamcityBuildWatermark(application.getId(), prod.getId());
+        prodWatermark.advance(200, 1000);
+        when(watermarkRepository.findByCollectorItemId(application.getId()))
+                .thenReturn(Collections.singletonList(prodWatermark));
+        TeamcityBuildRecord build = build("301");
+        when(collectorRepository.findByName("TeamcityDeployment")).thenReturn(collector);
+        when(applicationRepository.findEnabledApplications(collector.getId(), SERVER))
+                .thenReturn(Collections.singletonList(application));
+        when(teamcityClient.getBuild(SERVER, "301")).thenReturn(build);
+        when(teamcityClient.getEnvironmentResourceStatusData(application, prod, prodWatermark,
+                Collections.singletonList(build))).thenReturn(Collections.singletonList(deployment("prod", "301")));
+
+        assertTrue(task().collectBuild(SERVER, prod.getId(), "301"));
+
+        verify(teamcityClient, never()).getEnvironmentResourceStatusData(any(TeamcityApplication.class),
+                any(Environment.class), any(TeamcityBuildWatermark.class));
+        assertEquals(301, prodWatermark.getLastBuildId());
+    }
+
+    @Test
+    public void runningBuildIsNotCollected() {
+        when(collectorRepository.findByName("TeamcityDeployment")).thenReturn(collector);
+        when(applicationRepository.findEnabledApplications(collector.getId(), SERVER))
+                .thenReturn(Collections.singletonList(application));
+
+        assertFalse(task().collectBuild(SERVER, prod.getId(), "302"));
+
+        verify(bulkWriter, never()).write(any(), any(), any());
+    }
+
+    private TeamcityBuildRecord build(String buildId) {
+        TeamcityBuildRecord build = new TeamcityBuildRecord();
+        build.setBuildId(buildId);
+        build.setBuildTypeId(prod.getId());
+        build.setState("finished");
+        build.setStatus("SUCCESS");
+        return build;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> deletes(Class<T> type) {
+        ArgumentCaptor<Collection> saves = ArgumentCaptor.forClass(Collection.class);
+        ArgumentCaptor<Collection> deletes = ArgumentCaptor.forClass(Collection.class);
+        verify(bulkWriter).write(eq((Class) type), saves.capture(), deletes.capture());
+        return new ArrayList<>((Collection<T>) deletes.getValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<TeamcityBuildWatermark> savedWatermarks() {
+        ArgumentCaptor<Iterable> saved = ArgumentCaptor.forClass(Iterable.class);
+        verify(watermarkRepository).save(saved.capture());
+        List<TeamcityBuildWatermark> watermarks = new ArrayList<>();
+        ((Iterable<TeamcityBuildWatermark>) saved.getValue()).forEach(watermarks::add);
+        return watermarks;
+    }
+
+    private TeamcityEnvResCompData deployment(String environmentName, String buildId) {
+        TeamcityEnvResCompData data = new TeamcityEnvResCompData();
+        data.setCollectorItemId(application.getId());
+        data.setEnvironmentName(environmentName);
+        data.setComponentID(buildId);
+        data.setComponentName(application.getApplicationName());
+        data.setDeployed(true);
+        data.setOnline(true);
+        data.setAsOfDate(System.currentTimeMillis());
+        data.setResourceName("teamcity-runner");
+        return data;
+    }
+
+    private EnvironmentComponent storedComponent(String environmentName, String buildId) {
+        EnvironmentComponent component = new EnvironmentComponent();
+        component.setId(new ObjectId());
+        component.setCollectorItemId(application.getId());
+        component.setEnvironmentName(environmentName);
+        component.setComponentID(buildId);
+        component.setComponentName(application.getApplicationName());
+        component.setDeployed(true);
+        component.setAsOfDate(System.currentTimeMillis());
+        return component;
+    }
+
+    private EnvironmentStatus storedStatus(String environmentName, String buildId) {
+        EnvironmentStatus status = new EnvironmentStatus();
+        status.setId(new ObjectId());
+        status.setCollectorItemId(application.getId());
+        status.setEnvironmentName(environmentName);
+        status.setComponentID(buildId);
+        status.setComponentName(application.getApplicationName());
+        status.setOnline(true);
+        status.setResourceName("teamcity-runner");
+        return status;
+    }
+}